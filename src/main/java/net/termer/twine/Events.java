@@ -61,7 +61,14 @@ public class Events {
 		 * This event cannot be cancelled.
 		 * @since 1.5
 		 */
-		CLUSTER_JOIN
+		CLUSTER_JOIN,
+		/**
+		 * Event fired when files in a domain root or the static directory have changed on disk.
+		 * Only fired if "server.watch.enable" is true.
+		 * This event cannot be cancelled.
+		 * @since 2.3
+		 */
+		FILES_CHANGED
 	}
 	
 	private static final HashMap<Type, ArrayList<TwineEvent>> _events = new HashMap<>();
@@ -1,28 +1,49 @@
 package net.termer.twine;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.TimeZone;
-import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
 import io.vertx.core.VertxOptions;
 import io.vertx.core.eventbus.EventBusOptions;
 import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.Http2Settings;
 import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpVersion;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.net.JksOptions;
+import io.vertx.core.net.KeyCertOptions;
+import io.vertx.core.net.OpenSSLEngineOptions;
+import io.vertx.core.net.PemKeyCertOptions;
 import io.vertx.core.spi.cluster.NodeListener;
 import io.vertx.ext.web.handler.BodyHandler;
 import io.vertx.ext.web.handler.SessionHandler;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.handler.StaticHandler;
+import io.vertx.ext.web.sstore.ClusteredSessionStore;
 import io.vertx.ext.web.sstore.LocalSessionStore;
 import io.vertx.ext.web.sstore.SessionStore;
 import io.vertx.spi.cluster.zookeeper.ZookeeperClusterManager;
+import net.termer.twine.documents.Documents;
+import net.termer.twine.domains.Domain;
 import net.termer.twine.handler.*;
+import net.termer.twine.metrics.HandlerProfiler;
+import net.termer.twine.metrics.Metrics;
+import net.termer.twine.utils.PersistentSessionStore;
+import net.termer.twine.utils.ReloadableKeyCertOptions;
+import net.termer.twine.utils.RouterGroup;
+import net.termer.twine.utils.files.AccessLogWriter;
 
 import static net.termer.twine.Twine.config;
+import static net.termer.twine.Twine.domains;
 import static net.termer.twine.Twine.logger;
 
 /**
@@ -35,25 +56,34 @@ public class ServerManager {
 	private static Vertx _vertx = null;
 	private static HttpServer _http = null;
 	private static HttpServer _redir = null;
+	private static Router[] _routers = null;
 	private static Router _router = null;
+	private static Router _profiledRouter = null;
+	private static int _instances = 1;
 	
 	// Handlers
 	private static SessionStore _sessStore = null;
 	private static SessionHandler _sess = null;
+	private static SessionFilterHandler _sessFilter = null;
 	private static StaticHandler _staticHandler = null;
+	private static StaticHandler[] _staticHandlers = null;
 	private static BodyHandler _bodyHandler = null;
 	private static final JsonBodyHandler _jsonBodyHandler = new JsonBodyHandler();
 	private static final LoggingHandler _loggingHandler = new LoggingHandler();
+	private static final MetricsHandler _metricsHandler = new MetricsHandler();
+	private static final DomainResolverHandler _domainResolverHandler = new DomainResolverHandler();
 	private static final DomainHandler _domainHandler = new DomainHandler();
 	private static final NotFoundHandler _notFoundHandler = new NotFoundHandler();
 	private static final ErrorHandler _errorHandler = new ErrorHandler();
 	
 	// Options
 	private static HttpServerOptions _httpOps = null;
+	private static ReloadableKeyCertOptions _tlsOptions = null;
+	private static volatile String _tlsFingerprint = null;
+	private static long _tlsTimer = -1;
 	
 	// Extra
 	private static TwineWebSocket _ws = null;
-	private static final SimpleDateFormat cacheDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz");
 	
 	/**
 	 * Initializes the server without starting it or registering handlers
@@ -62,8 +92,13 @@ public class ServerManager {
 	 */
 	protected static Future<Vertx> init() {
 		return Future.future(promise -> {
-			// Set cache date format timezone
-			cacheDateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+			// Vert.x options
+			VertxOptions vertxOps = new VertxOptions()
+					.setWorkerPoolSize((int) config().getNode("vertx.workerPoolSize"))
+					.setPreferNativeTransport((boolean) config().getNodeOrDefault("vertx.preferNativeTransport", true));
+			int eventLoops = (int) config().getNodeOrDefault("vertx.eventLoopPoolSize", 0);
+			if(eventLoops > 0)
+				vertxOps.setEventLoopPoolSize(eventLoops);
 
 			// Check if clustering is enabled
 			if((boolean) config().getNode("vertx.cluster.enable")) {
@@ -96,16 +131,20 @@ public class ServerManager {
 
 				// Create clustered Vert.x instance
 				EventBusOptions ebOps = new EventBusOptions();
-				VertxOptions vertxOps = new VertxOptions()
+				vertxOps
 						.setClusterManager(clusterMan)
-						.setEventBusOptions(ebOps)
-						.setWorkerPoolSize((int) config().getNode("vertx.workerPoolSize"));
+						.setEventBusOptions(ebOps);
 				Vertx.clusteredVertx(vertxOps).onComplete(res -> {
 					if(res.succeeded()) {
 						_vertx = res.result();
 
-						// Run the rest of the initialization process
-						_init();
+						// Run the rest of the initialization process, failing (rather than throwing out of this callback) on bad config
+						try {
+							_init();
+						} catch(Exception e) {
+							promise.fail(e);
+							return;
+						}
 						// Complete callback
 						promise.complete(_vertx);
 					} else {
@@ -116,8 +155,13 @@ public class ServerManager {
 
 			} else {
 				// Create normal Vert.x instance
-				_vertx = Vertx.vertx();
-				_init();
+				_vertx = Vertx.vertx(vertxOps);
+				try {
+					_init();
+				} catch(Exception e) {
+					promise.fail(e);
+					return;
+				}
 				promise.complete(_vertx);
 			}
 		});
@@ -125,54 +169,78 @@ public class ServerManager {
 	
 	// Completes the actions of init()
 	private static void _init() {
-		// Setup server
-		_router = Router.router(_vertx);
+		// Native transport notice
+		if((boolean) config().getNodeOrDefault("vertx.preferNativeTransport", true) && !_vertx.isNativeTransportEnabled())
+			logger().info("Native transport is not available, falling back to NIO");
+
+		// Setup routers, one for each server instance
+		_instances = (int) config().getNodeOrDefault("server.instances", 0);
+		if(_instances < 1)
+			_instances = Runtime.getRuntime().availableProcessors();
+		_routers = new Router[_instances];
+		for(int i = 0; i < _instances; i++)
+			_routers[i] = Router.router(_vertx);
+		_router = RouterGroup.create(_routers);
+		_profiledRouter = HandlerProfiler.profile(_router);
+		HandlerProfiler.configure();
 		_httpOps = new HttpServerOptions()
 				.setLogActivity((boolean) config().getNode("server.logging.enable"))
 				.setCompressionSupported((boolean) config().getNode("server.compression"))
 				.setMaxFormAttributeSize((int) config().getNode("server.maxBodySize"));
+		_configureTcp();
 		
+		// Document cache
+		_configureDocumentCache();
+
 		// Instantiate WebSocket utility
 		_ws = new TwineWebSocket(_vertx, (int) config().getNode("server.websocket.maxBytesStreaming"));
 
 		// SSL
 		if((boolean) config().getNode("server.https.enable")) {
-			String jksPath = (String) config().getNode("server.https.keystore");
-			String jksPwd = (String) config().getNode("server.https.keystorePassword");
-			_httpOps.setKeyStoreOptions(new JksOptions()
-				.setPath(jksPath)
-				.setPassword(jksPwd)
-			);
+			_configureTls();
 			_httpOps.setSsl(true);
 		}
 
-		// Create server
-		_http = _vertx.createHttpServer(_httpOps);
+		// HTTP/2
+		_configureHttp2();
+
+		// Resolve each request's domain before anything else
+		_profiledRouter.route().handler(_domainResolverHandler);
 
 		// Session (only if enabled)
 		if((boolean) config().getNode("server.sessions")) {
-			_sessStore = LocalSessionStore.create(vertx());
+			_sessStore = _createSessionStore();
 			_sess = SessionHandler.create(_sessStore);
-			_router.route().handler(_sess);
+			_sessFilter = new SessionFilterHandler(_sess);
+			_sessFilter.configure();
+			_profiledRouter.route().handler(_sessFilter);
 		}
 
 		// Logger
-		_router.route().handler(_loggingHandler);
+		_profiledRouter.route().handler(_loggingHandler);
+
+		// Metrics
+		Metrics.configure();
+		_profiledRouter.route().handler(_metricsHandler);
 
 		// Upload limit
 		_bodyHandler = BodyHandler.create();
 		_bodyHandler
 				.setBodyLimit((int) config().getNode("server.maxBodySize"));
 
-		// Static handler
-		_staticHandler = StaticHandler.create((String) config().getNode("server.static.directory"));
-		_staticHandler
-				.setIndexPage((String) config().getNode("server.static.indexPage"))
-				.setAllowRootFileSystemAccess(false)
-				.setCachingEnabled((boolean) config().getNode("server.static.caching"))
-				.setDirectoryListing((boolean) config().getNode("server.static.enableListing"))
-				.setIncludeHidden((boolean) config().getNode("server.static.includeHidden"))
-				.setEnableRangeSupport((boolean) config().getNode("server.static.enableRangeSupport"));
+		// Static handlers (one for each instance, because StaticHandler's cache is not thread-safe)
+		_staticHandlers = new StaticHandler[_instances];
+		for(int i = 0; i < _instances; i++) {
+			_staticHandlers[i] = StaticHandler.create((String) config().getNode("server.static.directory"));
+			_staticHandlers[i]
+					.setIndexPage((String) config().getNode("server.static.indexPage"))
+					.setAllowRootFileSystemAccess(false)
+					.setCachingEnabled((boolean) config().getNode("server.static.caching"))
+					.setDirectoryListing((boolean) config().getNode("server.static.enableListing"))
+					.setIncludeHidden((boolean) config().getNode("server.static.includeHidden"))
+					.setEnableRangeSupport((boolean) config().getNode("server.static.enableRangeSupport"));
+		}
+		_staticHandler = _staticHandlers[0];
 	}
 
 	/**
@@ -181,8 +249,8 @@ public class ServerManager {
 	 */
 	protected static void finishInit() {
 		// Setup body handlers before anything is done
-		_router.route().handler(_bodyHandler);
-		_router.route().handler(_jsonBodyHandler);
+		_profiledRouter.route().handler(_bodyHandler);
+		_profiledRouter.route().handler(_jsonBodyHandler);
 	}
 
 	/**
@@ -192,17 +260,24 @@ public class ServerManager {
 	 */
 	protected static Future<Vertx> start() {
 		return Future.future(promise -> {
-			// Setup WebSocket
+			// Setup WebSocket (each instance gets its own SockJS handler)
 			if((boolean) config().getNode("server.websocket.enable"))
-				_router.mountSubRouter(((String) config().getNode("server.websocket.endpoint")), _ws.build());
+				setupRouters(router -> router.mountSubRouter(((String) config().getNode("server.websocket.endpoint")), _ws.build()));
+
+			// Setup metrics endpoint
+			_router.get((String) config().getNodeOrDefault("server.metrics.endpoint", "/metrics")).handler(Metrics.handler());
+
+			// Setup profiler endpoint
+			_router.get((String) config().getNodeOrDefault("server.profiler.endpoint", "/profiler")).handler(HandlerProfiler.handler());
 
 			// Domain and static handlers
-			_router.route().handler(_domainHandler);
-			_router.route().handler(_staticHandler);
+			_profiledRouter.route().handler(_domainHandler);
+			for(int i = 0; i < _instances; i++)
+				HandlerProfiler.profile(_routers[i]).route().handler(_staticHandlers[i]);
 
 			// Error handlers
-			_router.errorHandler(404, _notFoundHandler);
-			_router.errorHandler(500, _errorHandler);
+			_profiledRouter.errorHandler(404, _notFoundHandler);
+			_profiledRouter.errorHandler(500, _errorHandler);
 
 			// Start server(s) if HTTP is enabled
 			if(!(boolean) config().getNode("server.enable")) {
@@ -216,10 +291,11 @@ public class ServerManager {
 				String addr = (String) config().getNode("server.ip");
 				int port = (int) config().getNode("server.port");
 
-				// Start server
-				_http.requestHandler(_router).listen(port, addr).onComplete(r -> {
+				// Start server instances, which all share the same port
+				AtomicInteger index = new AtomicInteger(0);
+				_vertx.deployVerticle(() -> new ServerVerticle(index.getAndIncrement(), addr, port), new DeploymentOptions().setInstances(_instances)).onComplete(r -> {
 					if(r.succeeded()) {
-						logger().info("Server listening on "+config().getNode("server.ip")+':'+r.result().actualPort());
+						logger().info("Server listening on "+config().getNode("server.ip")+':'+_http.actualPort()+(_instances > 1 ? " ("+_instances+" instances)" : ""));
 
 						// Setup HTTPS redirection, if HTTPS and redirection is enabled
 						if((boolean) config().getNode("server.https.enable") && (boolean) config().getNode("server.https.redirect.enable")) {
@@ -272,12 +348,32 @@ public class ServerManager {
 	}
 	
 	/**
-	 * Returns the server's Router object
+	 * Returns the server's Router object.
+	 * Handlers registered on it are timed by HandlerProfiler.
 	 * @return The server's Router
 	 * @since 1.0-alpha
 	 */
 	public static Router router() {
-		return _router;
+		return _profiledRouter;
+	}
+	/**
+	 * Runs a setup hook on the Router of every server instance.
+	 * Handlers registered on router() are shared by all instances, so this should be used for handlers that aren't thread-safe or that need their own state for each instance.
+	 * Handlers registered here are timed by HandlerProfiler, like handlers registered on router().
+	 * @param setup The setup hook, which is called once for each instance's Router
+	 * @since 2.3
+	 */
+	public static void setupRouters(Handler<Router> setup) {
+		for(Router router : _routers)
+			setup.handle(HandlerProfiler.profile(router));
+	}
+	/**
+	 * Returns the amount of HTTP server instances (and Routers)
+	 * @return The amount of server instances
+	 * @since 2.3
+	 */
+	public static int instances() {
+		return _instances;
 	}
 	/**
 	 * Returns the main Vertx instance
@@ -304,7 +400,8 @@ public class ServerManager {
 		return _bodyHandler;
 	}
 	/**
-	 * Returns the StaticHandler for this instance
+	 * Returns the StaticHandler for this instance.
+	 * Each server instance has its own StaticHandler, and this returns the first instance's.
 	 * @return The StaticHandler
 	 * @since 1.3
 	 */
@@ -329,20 +426,263 @@ public class ServerManager {
 		return _sessStore;
 	}
 	
+	/**
+	 * Returns the writer used to write to the access log
+	 * @return The access log writer
+	 * @since 2.3
+	 */
+	public static AccessLogWriter accessLog() {
+		return _loggingHandler.writer();
+	}
+	
 	/**
 	 * Reloads all server-specified variables
 	 * @since 1.0-alpha
 	 */
 	protected static void reloadVars() {
-		_staticHandler
-				.setWebRoot((String) config().getNode("server.static.directory"))
-				.setCachingEnabled((boolean) config().getNode("server.static.caching"))
-				.setDirectoryListing((boolean) config().getNode("server.static.enableListing"));
+		for(StaticHandler staticHandler : _staticHandlers)
+			staticHandler
+					.setWebRoot((String) config().getNode("server.static.directory"))
+					.setCachingEnabled((boolean) config().getNode("server.static.caching"))
+					.setDirectoryListing((boolean) config().getNode("server.static.enableListing"));
 		_bodyHandler
 				.setBodyLimit((int) config().getNode("server.maxBodySize"));
 		_httpOps
 				.setLogActivity((boolean) config().getNode("server.logging.enable"))
 				.setCompressionSupported((boolean) Twine.config().getNode("server.compression"))
 				.setMaxFormAttributeSize((int) config().getNode("server.maxBodySize"));
+		_loggingHandler.configure();
+		Metrics.configure();
+		HandlerProfiler.configure();
+		_configureDocumentCache();
+		if(_sessFilter != null)
+			_sessFilter.configure();
+		if(_tlsOptions != null) {
+			// Only rebuild certificates if the configured files changed, since Vert.x keeps an SSL context for every set of certificates
+			_reloadTlsIfChanged();
+			_watchTls();
+		}
+	}
+
+	// Creates the session store configured in server.sessionStore
+	private static SessionStore _createSessionStore() {
+		String type = ((String) config().getNodeOrDefault("server.sessionStore.type", "local")).toLowerCase();
+		long reaperInterval = ((Number) config().getNodeOrDefault("server.sessionStore.reaperInterval", 1000)).longValue();
+
+		switch(type) {
+			case "clustered":
+				if(!_vertx.isClustered()) {
+					logger().warn("Clustered sessions require clustering to be enabled, using local sessions");
+					return LocalSessionStore.create(_vertx, LocalSessionStore.DEFAULT_SESSION_MAP_NAME, reaperInterval);
+				}
+
+				// Clustered sessions expire by their time-to-live in the cluster map, so there is no reaper
+				return ClusteredSessionStore.create(_vertx, ClusteredSessionStore.DEFAULT_SESSION_MAP_NAME, ((Number) config().getNodeOrDefault("server.sessionStore.retryTimeout", 5000)).longValue());
+			case "persistent":
+				return PersistentSessionStore.create(_vertx, (String) config().getNodeOrDefault("server.sessionStore.file", "sessions.dat"), reaperInterval);
+			default:
+				if(!type.equals("local"))
+					logger().warn("Unknown session store type \""+type+"\", using local sessions");
+
+				return LocalSessionStore.create(_vertx, LocalSessionStore.DEFAULT_SESSION_MAP_NAME, reaperInterval);
+		}
+	}
+
+	// Applies TCP and HTTP connection settings to the HTTP server options
+	private static void _configureTcp() {
+		_httpOps
+				.setReusePort((boolean) config().getNodeOrDefault("server.tcp.reusePort", false))
+				.setTcpNoDelay((boolean) config().getNodeOrDefault("server.tcp.noDelay", true))
+				.setTcpQuickAck((boolean) config().getNodeOrDefault("server.tcp.quickAck", false))
+				.setTcpFastOpen((boolean) config().getNodeOrDefault("server.tcp.fastOpen", false))
+				.setTcpKeepAlive((boolean) config().getNodeOrDefault("server.tcp.keepAlive", false))
+				.setAcceptBacklog((int) config().getNodeOrDefault("server.tcp.acceptBacklog", -1))
+				.setReceiveBufferSize((int) config().getNodeOrDefault("server.tcp.receiveBufferSize", -1))
+				.setSendBufferSize((int) config().getNodeOrDefault("server.tcp.sendBufferSize", -1))
+				.setIdleTimeoutUnit(TimeUnit.MILLISECONDS)
+				.setIdleTimeout((int) config().getNodeOrDefault("server.tcp.idleTimeout", 0))
+				.setMaxInitialLineLength((int) config().getNodeOrDefault("server.http.maxInitialLineLength", 4096))
+				.setMaxHeaderSize((int) config().getNodeOrDefault("server.http.maxHeaderSize", 8192));
+	}
+
+	// Applies certificates and the SSL engine to the HTTP server options
+	private static void _configureTls() {
+		try {
+			_tlsOptions = new ReloadableKeyCertOptions(_vertx, _keyCertOptions());
+		} catch(Exception e) {
+			throw new RuntimeException("Failed to load TLS certificates", e);
+		}
+		_tlsFingerprint = _tlsFingerprint();
+		_httpOps
+				.setKeyCertOptions(_tlsOptions)
+				.setSni(true);
+		_watchTls();
+
+		// SSL engine
+		if((boolean) config().getNodeOrDefault("server.https.openssl.enable", false)) {
+			if(OpenSSLEngineOptions.isAvailable()) {
+				_httpOps.setOpenSslEngineOptions(new OpenSSLEngineOptions()
+						.setSessionCacheEnabled((boolean) config().getNodeOrDefault("server.https.openssl.sessionCache", true))
+				);
+			} else {
+				logger().warn("OpenSSL is not available, falling back to JDK SSL");
+			}
+		}
+	}
+
+	// Creates options for the configured certificates: PEM certificates (the default certificate first, then each domain's own certificate, selected with SNI), or the keystore
+	private static KeyCertOptions _keyCertOptions() {
+		PemKeyCertOptions pem = new PemKeyCertOptions();
+		for(String[] pair : _tlsFiles())
+			pem.addCertPath(pair[0]).addKeyPath(pair[1]);
+
+		String jksPath = (String) config().getNode("server.https.keystore");
+		if(pem.getCertPaths().isEmpty()) {
+			return new JksOptions()
+					.setPath(jksPath)
+					.setPassword((String) config().getNode("server.https.keystorePassword"));
+		} else {
+			if(!jksPath.isEmpty())
+				logger().warn("server.https.keystore is ignored because PEM certificates are configured");
+
+			return pem;
+		}
+	}
+
+	// Returns the configured PEM certificate and key paths, the default certificate first
+	private static ArrayList<String[]> _tlsFiles() {
+		ArrayList<String[]> files = new ArrayList<>();
+		String cert = (String) config().getNodeOrDefault("server.https.cert", "");
+		String key = (String) config().getNodeOrDefault("server.https.key", "");
+		if(!cert.isEmpty())
+			files.add(new String[] { cert, key });
+		for(Domain dom : domains().all())
+			if(dom.tls().enabled())
+				files.add(new String[] { dom.tls().cert(), dom.tls().key() });
+
+		return files;
+	}
+
+	// Returns a string that changes when any configured certificate, key or keystore file changes
+	private static String _tlsFingerprint() {
+		ArrayList<String> paths = new ArrayList<>();
+		for(String[] pair : _tlsFiles())
+			paths.addAll(Arrays.asList(pair));
+		if(paths.isEmpty())
+			paths.add((String) config().getNode("server.https.keystore"));
+
+		StringBuilder res = new StringBuilder();
+		for(String path : paths) {
+			// File follows symlinks, so renewals that swap a link (such as Let's Encrypt's live directory) are seen
+			File file = new File(path);
+			res.append(path).append(':').append(file.lastModified()).append(':').append(file.length()).append(';');
+		}
+
+		return res.toString();
+	}
+
+	// Starts (or restarts) checking certificate files for changes
+	private static void _watchTls() {
+		if(_tlsTimer > -1) {
+			_vertx.cancelTimer(_tlsTimer);
+			_tlsTimer = -1;
+		}
+
+		long interval = ((Number) config().getNodeOrDefault("server.https.reloadInterval", 60000)).longValue();
+		if(interval > 0) {
+			_tlsTimer = _vertx.setPeriodic(interval, id -> _reloadTlsIfChanged());
+		}
+	}
+
+	// Reloads TLS certificates if the configured files (or which files are configured) changed since they were last loaded
+	private static void _reloadTlsIfChanged() {
+		_vertx.<String>executeBlocking(promise -> promise.complete(_tlsFingerprint()), false, res -> {
+			if(res.succeeded() && !res.result().equals(_tlsFingerprint)) {
+				logger().info("TLS certificate files changed, reloading certificates");
+				reloadTls();
+			}
+		});
+	}
+
+	/**
+	 * Reloads TLS certificates from the files currently configured, without restarting the server.
+	 * New connections use the new certificates, while existing connections keep using the ones they were opened with.
+	 * If the new certificates fail to load, the current ones are kept.
+	 * Does nothing if HTTPS is not enabled.
+	 * @return A future that completes once the certificates have been reloaded, or fails if they could not be loaded
+	 * @since 2.3
+	 */
+	public static Future<Void> reloadTls() {
+		if(_tlsOptions == null)
+			return Future.succeededFuture();
+
+		return _vertx.<Void>executeBlocking(promise -> {
+			try {
+				// Remember the files even if they fail to load, so broken files are only reported once
+				_tlsFingerprint = _tlsFingerprint();
+				_tlsOptions.update(_vertx, _keyCertOptions());
+				promise.complete();
+			} catch(Exception e) {
+				promise.fail(e);
+			}
+		}, false).onComplete(res -> {
+			if(res.succeeded()) {
+				logger().info("Reloaded TLS certificates");
+			} else {
+				logger().error("Failed to reload TLS certificates, keeping the current ones");
+				res.cause().printStackTrace();
+			}
+		});
+	}
+
+	// Applies HTTP/2 settings to the HTTP server options
+	private static void _configureHttp2() {
+		boolean enabled = (boolean) config().getNodeOrDefault("server.http2.enable", true);
+
+		// HTTP/2 over TLS is negotiated with ALPN, falling back to HTTP/1.1 for clients that don't support it
+		_httpOps
+				.setUseAlpn(enabled && _httpOps.isSsl())
+				.setAlpnVersions(Arrays.asList(HttpVersion.HTTP_2, HttpVersion.HTTP_1_1))
+				.setInitialSettings(new Http2Settings()
+						.setMaxConcurrentStreams(((Number) config().getNodeOrDefault("server.http2.maxConcurrentStreams", 100)).longValue())
+						.setInitialWindowSize((int) config().getNodeOrDefault("server.http2.initialWindowSize", 65535))
+				)
+				.setHttp2ConnectionWindowSize((int) config().getNodeOrDefault("server.http2.connectionWindowSize", -1));
+
+		// Cleartext HTTP/2 (h2c upgrade and prior knowledge) can only be toggled with a system property, which is read when servers are created
+		System.setProperty("vertx.disableH2c", Boolean.toString(!(enabled && (boolean) config().getNodeOrDefault("server.http2.clearText", true))));
+	}
+
+	// Applies document cache settings
+	private static void _configureDocumentCache() {
+		boolean enabled = (boolean) config().getNodeOrDefault("server.documents.cache.enable", true);
+		long maxBytes = ((Number) config().getNodeOrDefault("server.documents.cache.maxBytes", 33554432)).longValue();
+
+		Documents.cache().maxBytes(enabled ? maxBytes : 0);
+	}
+
+	// A single HTTP server instance, which runs on its own event loop and handles requests with its own Router
+	private static class ServerVerticle extends AbstractVerticle {
+		private final int _index;
+		private final String _addr;
+		private final int _port;
+
+		private ServerVerticle(int index, String addr, int port) {
+			_index = index;
+			_addr = addr;
+			_port = port;
+		}
+
+		public void start(Promise<Void> startPromise) {
+			vertx.createHttpServer(_httpOps).requestHandler(_routers[_index]).listen(_port, _addr).onComplete(res -> {
+				if(res.succeeded()) {
+					if(_index == 0)
+						_http = res.result();
+					startPromise.complete();
+				} else {
+					startPromise.fail(res.cause());
+				}
+			});
+		}
 	}
 }
\ No newline at end of file
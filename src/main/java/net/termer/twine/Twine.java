@@ -3,17 +3,23 @@ package net.termer.twine;
 import java.io.File;
 import java.io.IOException;
 import java.lang.ProcessBuilder.Redirect;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
 import io.vertx.core.http.HttpServerRequest;
 import net.termer.twine.documents.Documents;
+import net.termer.twine.domains.Domain;
 import net.termer.twine.domains.Domains;
 import net.termer.twine.exceptions.ConfigException;
 import net.termer.twine.utils.*;
 import net.termer.twine.utils.files.BlockingFileChecker;
+import net.termer.twine.utils.files.FileWatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,9 +44,17 @@ public class Twine {
 	private static final String _verStr = "2.2";
 	private static final int _verInt = 11;
 	private static final Logger _logger = LoggerFactory.getLogger(Twine.class);
-	private static YamlConfig _conf = null;
-	private static Domains _domains = null;
+	// The current config and domains, replaced all at once when configs are reloaded so readers never see a partially loaded config
+	private static final AtomicReference<ConfigSnapshot> _snapshot = new AtomicReference<>(ConfigSnapshot.empty());
 	private static boolean _firstConf = true;
+	// Drops cached paths for domains with changed files, and cached documents for changed files
+	private static final Handler<Path> _cacheInvalidator = path -> {
+		domains().clearCachesFor(path);
+
+		Documents.cache().removeByPrefix(path.toString());
+		PrecompressedFiles.forget(path.toString());
+		HotFiles.forget(path.toString());
+	};
 	
 	public static void main(String[] args) {
 		// Start main thread name
@@ -118,7 +132,6 @@ public class Twine {
 					});
 
 					logger().info("Loading configs...");
-					_conf = new YamlConfig("twine.yml");
 
 					try {
 						// Load all configurations (reloadConfigurations() is just load when it's first called)
@@ -131,6 +144,12 @@ public class Twine {
 								Thread worker = new Thread(() -> {
 									// Catch any further initialization errors
 									try {
+										// Start watching domain roots for changes
+										_watchFiles();
+
+										// Generate compressed variants of domain files in the background if enabled
+										_precompressFiles();
+
 										// Load modules
 										ModuleManager.loadModules();
 
@@ -225,69 +244,162 @@ public class Twine {
 	}
 	
 	/**
-	 * Reloads all server configuration files
+	 * Reloads all server configuration files.
+	 * The new config and domains are loaded separately from the current ones, and replace them all at once when they are fully loaded.
+	 * If loading fails, the current config and domains are kept.
+	 * When called on an event loop thread, the files are loaded on a worker thread and the new config is applied on the calling context once it's ready.
+	 * In that case this method returns before the new config is applied, and loading failures are logged instead of thrown.
 	 * @throws IOException If loading configuration files fail
 	 * @throws ConfigException If any configuration files have errors in them
 	 * @since 1.0-alpha
 	 */
-	@SuppressWarnings("unchecked")
-	public static void reloadConfigurations() throws IOException, ConfigException {
+	public static synchronized void reloadConfigurations() throws IOException, ConfigException {
 		boolean proceed = true;
 		if(ServerManager.vertx() != null)
 			proceed = Events.fire(Type.CONFIG_RELOAD);
 		
 		if(proceed) {
-			_conf.load();
+			if(ServerManager.vertx() != null && Context.isOnEventLoopThread()) {
+				// Don't block the event loop with reading and parsing the config
+				ServerManager.vertx().<ConfigSnapshot>executeBlocking(promise -> {
+					try {
+						promise.complete(_loadSnapshot());
+					} catch(IOException | ConfigException e) {
+						promise.fail(e);
+					}
+				}, res -> {
+					if(res.succeeded()) {
+						_publishSnapshot(res.result());
+					} else {
+						logger().error("Failed to reload configurations, keeping the current ones:");
+						res.cause().printStackTrace();
+					}
+				});
+			} else {
+				_publishSnapshot(_loadSnapshot());
+			}
+		}
+	}
 
-			// Modify config based on environment variables
-			for(String envKey : System.getenv().keySet()) {
-				if(envKey.startsWith("TW_CONF_")) {
-					String node = envKey.substring(8);
-					String val = System.getenv(envKey).replace("_", ".");
+	// Loads twine.yml with environment and CLI overrides applied, and parses its domains
+	@SuppressWarnings("unchecked")
+	private static ConfigSnapshot _loadSnapshot() throws IOException, ConfigException {
+		// Load into a new config, so the current one is untouched until the new one is ready
+		YamlConfig conf = new YamlConfig("twine.yml");
+		conf.load();
+
+		// Modify config based on environment variables
+		for(String envKey : System.getenv().keySet()) {
+			if(envKey.startsWith("TW_CONF_")) {
+				String node = envKey.substring(8);
+				String val = System.getenv(envKey).replace("_", ".");
+
+				if(PrimitiveUtils.isBoolean(val)) {
+					conf.tempSetNode(node, Boolean.parseBoolean(val));
+				} else if(PrimitiveUtils.isInt(val)) {
+					conf.tempSetNode(node, Integer.parseInt(val));
+				} else if(PrimitiveUtils.isDouble(val)) {
+					conf.tempSetNode(node, Double.parseDouble(val));
+				} else {
+					conf.tempSetNode(node, val);
+				}
+			}
+		}
+
+		// Modify config based on CLI options
+		if(_args.option("config")) {
+			for(String op : _args.optionValues("config")) {
+				if (op.contains(":")) {
+					String node = op.substring(0, op.indexOf(':'));
+					String val = op.substring(op.indexOf(':') + 1);
 
 					if(PrimitiveUtils.isBoolean(val)) {
-						_conf.tempSetNode(node, Boolean.parseBoolean(val));
+						conf.tempSetNode(node, Boolean.parseBoolean(val));
 					} else if(PrimitiveUtils.isInt(val)) {
-						_conf.tempSetNode(node, Integer.parseInt(val));
+						conf.tempSetNode(node, Integer.parseInt(val));
 					} else if(PrimitiveUtils.isDouble(val)) {
-						_conf.tempSetNode(node, Double.parseDouble(val));
+						conf.tempSetNode(node, Double.parseDouble(val));
 					} else {
-						_conf.tempSetNode(node, val);
+						conf.tempSetNode(node, val);
 					}
 				}
 			}
+		}
 
-			// Modify config based on CLI options
-			if(_args.option("config")) {
-				for(String op : _args.optionValues("config")) {
-					if (op.contains(":")) {
-						String node = op.substring(0, op.indexOf(':'));
-						String val = op.substring(op.indexOf(':') + 1);
-
-						if(PrimitiveUtils.isBoolean(val)) {
-							_conf.tempSetNode(node, Boolean.parseBoolean(val));
-						} else if(PrimitiveUtils.isInt(val)) {
-							_conf.tempSetNode(node, Integer.parseInt(val));
-						} else if(PrimitiveUtils.isDouble(val)) {
-							_conf.tempSetNode(node, Double.parseDouble(val));
-						} else {
-							_conf.tempSetNode(node, val);
-						}
-					}
+		// Parse domains
+		Domains domains = new Domains((Map<String, Map<String, Object>>) conf.getNode("server.domains"), (String) conf.getNode("server.defaultDomain"), conf);
+
+		return new ConfigSnapshot(conf, domains);
+	}
+
+	// Replaces the current config and domains with a newly loaded snapshot, and applies it to the running server
+	private static synchronized void _publishSnapshot(ConfigSnapshot snapshot) {
+		// Drop cached paths from the previous domains since their roots may have changed
+		Domains oldDomains = _snapshot.getAndSet(snapshot).domains();
+		if(oldDomains != null)
+			oldDomains.clearCaches();
+
+		// Only run after first run
+		if(_firstConf) {
+			_firstConf = false;
+		} else {
+			ServerManager.reloadVars();
+			_watchFiles();
+		}
+	}
+	
+	// Watches (or stops watching) domain roots and the static directory based on the current config.
+	// Failures are logged rather than thrown, since caches still revalidate against the files on disk without the watcher.
+	private static void _watchFiles() {
+		if((boolean) config().getNodeOrDefault("server.watch.enable", true)) {
+			if(!FileWatcher.running()) {
+				try {
+					FileWatcher.start();
+				} catch(IOException e) {
+					logger().error("Failed to start file watcher, changes will only be picked up when caches revalidate:");
+					e.printStackTrace();
+					return;
 				}
+				FileWatcher.removeListener(_cacheInvalidator);
+				FileWatcher.addListener(_cacheInvalidator);
 			}
-			
-			// Parse domains
-			_domains = new Domains((Map<String, Map<String, Object>>) _conf.getNode("server.domains"), (String) _conf.getNode("server.defaultDomain"));
-			
-			// Only run after first run
-			if(_firstConf) {
-				_firstConf = false;
-			} else {
-				ServerManager.reloadVars();
+
+			// Register current directories, since they may have changed since the last load
+			FileWatcher.unwatchAll();
+			ArrayList<String> dirs = new ArrayList<>();
+			for(Domain dom : domains().all())
+				dirs.add(dom.root());
+			dirs.add((String) config().getNode("server.static.directory"));
+			for(String dir : dirs) {
+				try {
+					FileWatcher.watch(dir);
+				} catch(IOException e) {
+					logger().error("Failed to watch "+dir+", changes in it will only be picked up when caches revalidate:");
+					e.printStackTrace();
+				}
+			}
+		} else {
+			FileWatcher.stop();
+		}
+	}
+	// Generates compressed variants of files in all domain roots and the static directory if enabled
+	private static void _precompressFiles() {
+		if(PrecompressedFiles.enabled() && (boolean) config().getNodeOrDefault("server.precompressed.generateOnStartup", false)) {
+			ArrayList<String> dirs = new ArrayList<>();
+			for(Domain dom : domains().all())
+				if(!dirs.contains(dom.root()))
+					dirs.add(dom.root());
+			dirs.add((String) config().getNode("server.static.directory"));
+
+			for(String dir : dirs) {
+				PrecompressedFiles.generateAll(dir).onFailure(e -> {
+					logger().error("Failed to generate compressed variants of files in "+dir+":");
+					e.printStackTrace();
+				});
 			}
 		}
 	}
+
 	/**
 	 * Calls all shutdown methods on Modules, and then shuts down Twine
 	 * @since 1.3
@@ -302,6 +414,12 @@ public class Twine {
 		logger().info("Shutting down down Twine...");
 		logger().info("Shutting down modules...");
 		ModuleManager.shutdownModules();
+		logger().info("Writing remaining access log lines...");
+		ServerManager.accessLog().close(5000);
+		if(ServerManager.sessionStore() != null) {
+			logger().info("Closing session store...");
+			ServerManager.sessionStore().close();
+		}
 		logger().info("Shutting down Vert.x...");
 		ServerManager.vertx().close(r -> {
 			if(r.succeeded()) {
@@ -353,7 +471,7 @@ public class Twine {
 	 * @since 1.0-alpha
 	 */
 	public static YamlConfig config() {
-		return _conf;
+		return _snapshot.get().config();
 	}
 	/**
 	 * Returns the server's configured domains
@@ -361,6 +479,15 @@ public class Twine {
 	 * @since 1.0-alpha
 	 */
 	public static Domains domains() {
-		return _domains;
+		return _snapshot.get().domains();
+	}
+	/**
+	 * Returns the current config and domains together.
+	 * Calling config() and domains() separately may return values from different reloads if configs are reloaded in between, but a snapshot's config and domains always belong together.
+	 * @return The current config snapshot
+	 * @since 2.3
+	 */
+	public static ConfigSnapshot snapshot() {
+		return _snapshot.get();
 	}
 }
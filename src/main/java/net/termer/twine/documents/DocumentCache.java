@@ -0,0 +1,204 @@
+package net.termer.twine.documents;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least-recently-used cache of document content and compiled templates, bounded by the approximate amount of memory they take up.
+ * Each entry is stored along with the modification time of the file it came from, and is only returned if that time still matches.
+ * @author termer
+ * @since 2.3
+ */
+public class DocumentCache {
+	private long _maxBytes;
+	private long _bytes = 0;
+	private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * Creates a new DocumentCache
+	 * @param maxBytes The maximum amount of memory (in bytes) that cached content may take up, or 0 to disable caching
+	 * @since 2.3
+	 */
+	public DocumentCache(long maxBytes) {
+		_maxBytes = Math.max(maxBytes, 0);
+	}
+
+	/**
+	 * Returns the cached content for the specified key, or null if none is cached or the cached content is outdated
+	 * @param key The key the content was cached under
+	 * @param lastModified The current modification time of the file the content came from
+	 * @return The cached content, or null
+	 * @since 2.3
+	 */
+	public synchronized String get(String key, long lastModified) {
+		Object content = _get(key, lastModified);
+
+		return content instanceof String ? (String) content : null;
+	}
+	/**
+	 * Returns the cached template for the specified key, or null if none is cached or the cached template is outdated
+	 * @param key The key the template was cached under
+	 * @param lastModified The current modification time of the file the template came from
+	 * @return The cached template, or null
+	 * @since 2.3
+	 */
+	public synchronized DocumentTemplate getTemplate(String key, long lastModified) {
+		Object content = _get(key, lastModified);
+
+		return content instanceof DocumentTemplate ? (DocumentTemplate) content : null;
+	}
+
+	/**
+	 * Caches content under the specified key, evicting the least recently used entries if the cache is over its limit.
+	 * Content larger than the cache's limit is not cached.
+	 * @param key The key to cache the content under
+	 * @param lastModified The modification time of the file the content came from
+	 * @param content The content to cache
+	 * @since 2.3
+	 */
+	public synchronized void put(String key, long lastModified, String content) {
+		_put(key, lastModified, content, ((long) key.length() + content.length()) * 2 + 64);
+	}
+	/**
+	 * Caches a compiled template under the specified key, evicting the least recently used entries if the cache is over its limit.
+	 * Templates larger than the cache's limit are not cached.
+	 * @param key The key to cache the template under
+	 * @param lastModified The modification time of the file the template came from
+	 * @param template The template to cache
+	 * @since 2.3
+	 */
+	public synchronized void putTemplate(String key, long lastModified, DocumentTemplate template) {
+		_put(key, lastModified, template, key.length() * 2L + template.bytes());
+	}
+
+	/**
+	 * Removes all entries whose keys start with the specified prefix
+	 * @param prefix The key prefix
+	 * @since 2.3
+	 */
+	public synchronized void removeByPrefix(String prefix) {
+		Iterator<Map.Entry<String, Entry>> it = _entries.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<String, Entry> entry = it.next();
+
+			if(entry.getKey().startsWith(prefix)) {
+				_bytes -= entry.getValue()._size;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes all entries from this cache
+	 * @since 2.3
+	 */
+	public synchronized void clear() {
+		_entries.clear();
+		_bytes = 0;
+	}
+
+	/**
+	 * Returns the maximum amount of memory (in bytes) that cached content may take up
+	 * @return The maximum amount of memory cached content may take up
+	 * @since 2.3
+	 */
+	public synchronized long maxBytes() {
+		return _maxBytes;
+	}
+	/**
+	 * Sets the maximum amount of memory (in bytes) that cached content may take up, evicting entries if necessary
+	 * @param maxBytes The maximum amount of memory cached content may take up, or 0 to disable caching
+	 * @return This, to be used fluently
+	 * @since 2.3
+	 */
+	public synchronized DocumentCache maxBytes(long maxBytes) {
+		_maxBytes = Math.max(maxBytes, 0);
+		_evict();
+		return this;
+	}
+
+	/**
+	 * Returns whether this cache stores any content at all
+	 * @return Whether this cache is enabled
+	 * @since 2.3
+	 */
+	public synchronized boolean enabled() {
+		return _maxBytes > 0;
+	}
+
+	/**
+	 * Returns the approximate amount of memory (in bytes) currently taken up by cached content
+	 * @return The approximate amount of memory taken up by cached content
+	 * @since 2.3
+	 */
+	public synchronized long bytes() {
+		return _bytes;
+	}
+
+	/**
+	 * Returns the amount of entries in this cache
+	 * @return The amount of entries in this cache
+	 * @since 2.3
+	 */
+	public synchronized int size() {
+		return _entries.size();
+	}
+
+	// Returns the cached value for a key, dropping it if it's outdated
+	private Object _get(String key, long lastModified) {
+		Entry entry = _entries.get(key);
+
+		if(entry == null)
+			return null;
+
+		// Drop outdated entries
+		if(entry._lastModified != lastModified) {
+			_remove(key);
+			return null;
+		}
+
+		return entry._content;
+	}
+
+	// Caches a value with its approximate heap usage (chars counted as 2 bytes)
+	private void _put(String key, long lastModified, Object content, long size) {
+		if(size > _maxBytes)
+			return;
+
+		_remove(key);
+		_entries.put(key, new Entry(lastModified, content, size));
+		_bytes += size;
+		_evict();
+	}
+
+	// Removes the entry with the specified key, if any
+	private void _remove(String key) {
+		Entry old = _entries.remove(key);
+		if(old != null)
+			_bytes -= old._size;
+	}
+
+	// Evicts least recently used entries until the cache is under its limit
+	private void _evict() {
+		Iterator<Entry> it = _entries.values().iterator();
+		while(_bytes > _maxBytes && it.hasNext()) {
+			_bytes -= it.next()._size;
+			it.remove();
+		}
+	}
+
+	// A cached piece of content or compiled template
+	private static class Entry {
+		private final long _lastModified;
+		private final Object _content;
+		private final long _size;
+
+		// Stores values
+		private Entry(long lastModified, Object content, long size) {
+			_lastModified = lastModified;
+			_content = content;
+			_size = size;
+		}
+	}
+}
@@ -2,8 +2,13 @@ package net.termer.twine.documents;
 
 import io.vertx.core.Future;
 import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.ext.web.RoutingContext;
 import net.termer.twine.domains.Domain;
+import net.termer.twine.metrics.Metrics;
+import net.termer.twine.utils.ResponseUtils;
+
+import java.util.Map;
 
 /**
  * Utility class to manipulate a document or how it's treated
@@ -17,7 +22,15 @@ public class DocumentOptions {
 	private String _name;
 	private String _extension;
 	private String _content;
+	// Rendered content, used in place of _content until a String is needed
+	private Buffer _buffer = null;
+	// Path and modification time of the file the content was read from, if it is unchanged
+	private String _path = null;
+	private long _lastModified = -1;
+	// ETag of the current content, once computed
+	private String _etag = null;
 	private int _procIndex = 0;
+	private long _procStart = 0;
 	private Promise<DocumentOptions> _promise = null;
 
 	/**
@@ -50,6 +63,19 @@ public class DocumentOptions {
 		return this;
 	}
 
+	/**
+	 * Records the file this document's content was read from, so its compiled template can be cached
+	 * @param path The absolute path of the file
+	 * @param lastModified The file's modification time
+	 * @return This, to be used fluently
+	 * @since 2.3
+	 */
+	protected DocumentOptions source(String path, long lastModified) {
+		_path = path;
+		_lastModified = lastModified;
+		return this;
+	}
+
 	/**
 	 * Returns the RoutingContext for the request that requested this document
 	 * @return The request's RoutingContext object
@@ -65,6 +91,9 @@ public class DocumentOptions {
 	 * @since 1.0
 	 */
 	public String content() {
+		if(_content == null && _buffer != null)
+			_content = _buffer.toString("UTF-8");
+
 		return _content;
 	}
 	/**
@@ -74,7 +103,72 @@ public class DocumentOptions {
 	 * @since 1.0
 	 */
 	public DocumentOptions content(String content) {
-		_content = content;
+		_setContent(content);
+		return this;
+	}
+
+	/**
+	 * Returns the document's content as a Buffer of UTF-8 bytes
+	 * @return The document's content
+	 * @since 2.3
+	 */
+	public Buffer buffer() {
+		if(_buffer == null)
+			_buffer = Buffer.buffer(_content, "UTF-8");
+
+		return _buffer;
+	}
+
+	/**
+	 * Returns a strong ETag of the document's current content, hashing it only if the ETag is not already known
+	 * @return The content's ETag, including quotes
+	 * @since 2.3
+	 */
+	public String etag() {
+		if(_etag == null)
+			_etag = ResponseUtils.contentEtag(buffer());
+
+		return _etag;
+	}
+	/**
+	 * Sets the known ETag of the document's current content, such as one cached along with the content
+	 * @param etag The content's ETag
+	 * @return This, to be used fluently
+	 * @since 2.3
+	 */
+	protected DocumentOptions etag(String etag) {
+		_etag = etag;
+		return this;
+	}
+
+	/**
+	 * Returns the document's content parsed as a template.
+	 * If the content has not been changed since it was read from disk, a cached template is used instead of parsing it again.
+	 * @return The document's template
+	 * @since 2.3
+	 */
+	public DocumentTemplate template() {
+		if(_path == null)
+			return DocumentTemplate.compile(content());
+		else
+			return DocumentTemplate.forDocument(_path, _lastModified, content());
+	}
+
+	/**
+	 * Fills all {{key}} placeholders in the document with the provided values in a single pass.
+	 * Placeholders without a value are left as they are.
+	 * This is much faster than calling replace(...) once per placeholder, especially for large documents.
+	 * @param values The values to fill placeholders with, keyed by placeholder key
+	 * @return This, to be used fluently
+	 * @since 2.3
+	 */
+	public DocumentOptions fill(Map<String, ?> values) {
+		Buffer rendered = template().render(values);
+
+		_content = null;
+		_buffer = rendered;
+		_path = null;
+		_etag = null;
 		return this;
 	}
 
@@ -144,7 +238,7 @@ public class DocumentOptions {
 	 * @since 1.0
 	 */
 	public DocumentOptions replace(String instance, String replacement) {
-		_content = _content.replace(instance, replacement);
+		_setContent(content().replace(instance, replacement));
 		return this;
 	}
 	/**
@@ -155,10 +249,27 @@ public class DocumentOptions {
 	 * @since 1.0
 	 */
 	public DocumentOptions replaceRegex(String instance, String replacement) {
-		_content = _content.replaceAll(instance, replacement);
+		_setContent(content().replaceAll(instance, replacement));
 		return this;
 	}
 
+	// Replaces content, forgetting any rendered buffer, source file and ETag
+	private void _setContent(String content) {
+		_content = content;
+		_buffer = null;
+		_path = null;
+		_etag = null;
+	}
+
+	/**
+	 * Returns whether there are any processors to execute on this document
+	 * @return Whether there are any processors to execute
+	 * @since 2.3
+	 */
+	protected boolean hasProcessors() {
+		return _procs.length > 0;
+	}
+
 	/**
 	 * Executes all processors and then returns the finished DocumentOptions object
 	 * @return A Future that returns this DocumentProcessor when processors have finished, ended, or returned an error
@@ -169,7 +280,7 @@ public class DocumentOptions {
 			_promise = promise;
 			_procIndex = 0;
 			if(_procs.length > 0)
-				_procs[0].process(this);
+				_process();
 			else
 				promise.complete(this);
 		});
@@ -179,9 +290,10 @@ public class DocumentOptions {
 	 * @since 1.0
 	 */
 	public void next() {
+		_recordTime();
 		_procIndex++;
 		if(_procIndex < _procs.length)
-			_procs[_procIndex].process(this);
+			_process();
 		else
 			_promise.complete(this);
 	}
@@ -192,6 +304,7 @@ public class DocumentOptions {
 	 * @since 1.0
 	 */
 	public void end() {
+		_recordTime();
 		_procIndex = _procs.length;
 		_promise.complete(this);
 	}
@@ -201,7 +314,19 @@ public class DocumentOptions {
 	 * @since 1.0
 	 */
 	public void fail(Throwable error) {
+		_recordTime();
 		_procIndex = _procs.length;
 		_promise.fail(error);
 	}
+
+	// Runs the current processor
+	private void _process() {
+		_procStart = System.nanoTime();
+		_procs[_procIndex].process(this);
+	}
+	// Records the time taken by the current processor
+	private void _recordTime() {
+		if(Metrics.enabled() && _procIndex < _procs.length)
+			Metrics.DOCUMENT_PROCESSING.labels(Metrics.classLabel(_procs[_procIndex])).observeNanos(System.nanoTime()-_procStart);
+	}
 }
\ No newline at end of file
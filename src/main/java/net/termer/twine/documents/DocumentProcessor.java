@@ -1,6 +1,6 @@
 package net.termer.twine.documents;
 
-import io.vertx.core.Future;
+import net.termer.twine.domains.Domain;
 
 /**
  * Interface for document processing
@@ -14,4 +14,17 @@ public interface DocumentProcessor {
 	 * @since 2.0
 	 */
 	void process(DocumentOptions options);
+
+	/**
+	 * Returns whether this processor's output for the specified document depends only on the document's content.
+	 * If every registered processor returns true for a document, the processed result is cached and served without running processors again until the document changes.
+	 * Processors that use anything from the request (session, parameters, headers, etc) must return false.
+	 * @param path The absolute path of the document
+	 * @param domain The domain the document is being served from
+	 * @return Whether this processor's output for the document can be cached
+	 * @since 2.3
+	 */
+	default boolean cacheable(String path, Domain domain) {
+		return false;
+	}
 }
\ No newline at end of file
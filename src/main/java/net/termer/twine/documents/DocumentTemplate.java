@@ -0,0 +1,152 @@
+package net.termer.twine.documents;
+
+import io.vertx.core.buffer.Buffer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * A document that has been parsed into literal segments and placeholder slots, so it can be filled with values in a single pass.
+ * Placeholders are written as {{key}}, and whitespace around the key is ignored.
+ * Placeholders with no provided value are written back unchanged, so other processors can still fill them.
+ * @author termer
+ * @since 2.3
+ */
+public class DocumentTemplate {
+	// Literal segments, one more than there are keys
+	private final byte[][] _literals;
+	// Placeholder keys, each one coming after the literal with the same index
+	private final String[] _keys;
+	// Original placeholder text, written back when no value is provided
+	private final byte[][] _raw;
+	private final int _literalBytes;
+	// Approximate heap usage, charged to the document cache
+	private final long _bytes;
+
+	// Stores values
+	private DocumentTemplate(byte[][] literals, String[] keys, byte[][] raw) {
+		_literals = literals;
+		_keys = keys;
+		_raw = raw;
+
+		int len = 0;
+		for(byte[] lit : literals)
+			len += lit.length;
+		_literalBytes = len;
+
+		// Count array headers as 16 bytes and chars as 2 bytes
+		long bytes = 64+len+literals.length*16L;
+		for(int i = 0; i < keys.length; i++)
+			bytes += 16+keys[i].length()*2L+16+raw[i].length;
+		_bytes = bytes;
+	}
+
+	/**
+	 * Parses the provided content into a template
+	 * @param content The content to parse
+	 * @return The parsed template
+	 * @since 2.3
+	 */
+	public static DocumentTemplate compile(String content) {
+		ArrayList<byte[]> literals = new ArrayList<>();
+		ArrayList<String> keys = new ArrayList<>();
+		ArrayList<byte[]> raw = new ArrayList<>();
+
+		int pos = 0;
+		int litStart = 0;
+		while(true) {
+			int open = content.indexOf("{{", pos);
+			if(open < 0)
+				break;
+			int close = content.indexOf("}}", open+2);
+			if(close < 0)
+				break;
+
+			String key = content.substring(open+2, close).trim();
+			pos = close+2;
+
+			// Empty placeholders are just literal text
+			if(key.isEmpty())
+				continue;
+
+			literals.add(content.substring(litStart, open).getBytes(StandardCharsets.UTF_8));
+			keys.add(key);
+			raw.add(content.substring(open, pos).getBytes(StandardCharsets.UTF_8));
+			litStart = pos;
+		}
+		literals.add(content.substring(litStart).getBytes(StandardCharsets.UTF_8));
+
+		return new DocumentTemplate(
+				literals.toArray(new byte[0][]),
+				keys.toArray(new String[0]),
+				raw.toArray(new byte[0][])
+		);
+	}
+
+	/**
+	 * Returns the template for a document on disk, parsing it only if it has not been parsed since it was last modified.
+	 * Templates are kept in the document cache, and count towards its memory limit.
+	 * @param path The absolute path of the document
+	 * @param lastModified The document's modification time
+	 * @param content The document's content
+	 * @return The document's template
+	 * @since 2.3
+	 */
+	public static DocumentTemplate forDocument(String path, long lastModified, String content) {
+		// Keys are prefixed by the document's path so they're dropped along with its other cached content
+		String key = path+"\0template";
+		DocumentTemplate tmpl = Documents.cache().getTemplate(key, lastModified);
+		if(tmpl == null) {
+			tmpl = compile(content);
+			Documents.cache().putTemplate(key, lastModified, tmpl);
+		}
+
+		return tmpl;
+	}
+
+	/**
+	 * Returns the approximate amount of memory (in bytes) this template takes up
+	 * @return The approximate amount of memory this template takes up
+	 * @since 2.3
+	 */
+	public long bytes() {
+		return _bytes;
+	}
+
+	/**
+	 * Returns the keys of all placeholders in this template, in the order they appear
+	 * @return All placeholder keys
+	 * @since 2.3
+	 */
+	public String[] keys() {
+		return _keys.clone();
+	}
+
+	/**
+	 * Fills this template's placeholders with the provided values and writes the result into a new Buffer
+	 * @param values The values to fill placeholders with, keyed by placeholder key
+	 * @return The filled document
+	 * @since 2.3
+	 */
+	public Buffer render(Map<String, ?> values) {
+		// Encode values first so the buffer can be sized up front (placeholders without values are written as they appear)
+		byte[][] vals = new byte[_keys.length][];
+		int size = _literalBytes;
+		for(int i = 0; i < _keys.length; i++) {
+			Object val = values.get(_keys[i]);
+
+			vals[i] = val == null ? _raw[i] : val.toString().getBytes(StandardCharsets.UTF_8);
+			size += vals[i].length;
+		}
+
+		Buffer buf = Buffer.buffer(size);
+		for(int i = 0; i < _keys.length; i++) {
+			buf.appendBytes(_literals[i]);
+			buf.appendBytes(vals[i]);
+		}
+		buf.appendBytes(_literals[_keys.length]);
+
+		return buf;
+	}
+}
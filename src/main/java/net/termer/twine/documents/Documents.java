@@ -6,10 +6,14 @@ import java.util.ArrayList;
 import java.util.Collections;
 
 import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.OpenOptions;
 import io.vertx.ext.web.RoutingContext;
 import net.termer.twine.domains.Domain;
+import net.termer.twine.utils.ResponseUtils;
 
 import static net.termer.twine.ServerManager.*;
+import static net.termer.twine.Twine.config;
 
 /**
  * Utility class to process documents
@@ -17,11 +21,18 @@ import static net.termer.twine.ServerManager.*;
  * @since 1.0-alpha
  */
 public class Documents {
+	// Size of chunks read from documents that are streamed
+	private static final int STREAM_CHUNK_SIZE = 65536;
+
 	// Document processors
 	private static final ArrayList<DocumentProcessor> _procs = new ArrayList<>();
+	private static final ArrayList<StreamingDocumentProcessor> _streamProcs = new ArrayList<>();
 	
 	// File extensions to process
 	private static final ArrayList<String> _extensions = new ArrayList<>(Collections.singletonList("html"));
+
+	// Cache of document sources and processed output, disabled until configured
+	private static final DocumentCache _cache = new DocumentCache(0);
 	
 	/**
 	 * Processes the provided document using available DocumentProcessors
@@ -36,10 +47,8 @@ public class Documents {
 	public static Future<String> process(String doc, String name, String extension, Domain domain, RoutingContext route) {
 		return Future.future(promise -> {
 			if(_procs.size() > 0) {
-				DocumentOptions ops = new DocumentOptions(doc, name, extension, domain, _procs.toArray(new DocumentProcessor[0]), route);
-
 				// Run registered processors and return result
-				ops.execute().onComplete(res -> {
+				_execute(new DocumentOptions(doc, name, extension, domain, _procs.toArray(new DocumentProcessor[0]), route)).onComplete(res -> {
 					if(res.succeeded()) {
 						promise.complete(res.result().content());
 					} else {
@@ -62,22 +71,162 @@ public class Documents {
 	 * @since 2.0
 	 */
 	public static Future<String> process(File doc, Domain domain, RoutingContext route) {
-		return Future.future(promise -> {
-			// Read file
-			vertx().fileSystem().readFile(doc.getAbsolutePath()).onComplete(res -> {
-				if(res.succeeded()) {
-					String document = res.result().toString(Charset.defaultCharset());
-
-					// Pass to normal processor
-					String name = doc.getName();
-					String ext = name.contains(".") ? name.substring(name.lastIndexOf('.')+1) : "";
-					process(document, name, ext, domain, route).onComplete(promise);
-				} else {
-					promise.fail(res.cause());
+		return _processFile(doc, domain, route).map(DocumentOptions::content);
+	}
+
+	/**
+	 * Processes the provided document using available DocumentProcessors, returning the result as UTF-8 bytes.
+	 * Preferable to process(File, Domain, RoutingContext) when the result is going to be written to a response, since documents filled with DocumentOptions.fill(...) never need to be converted to a String.
+	 * @param doc The document
+	 * @param domain The domain from which the document was accessed
+	 * @param route The RoutingContext for this document retrieval
+	 * @return A future that returns the result of this process
+	 * @since 2.3
+	 */
+	public static Future<Buffer> processBuffer(File doc, Domain domain, RoutingContext route) {
+		return _processFile(doc, domain, route).map(DocumentOptions::buffer);
+	}
+	/**
+	 * Processes the provided document using available DocumentProcessors, returning the finished DocumentOptions.
+	 * Its buffer() is the result, and its etag() is a hash of the result. If server.documents.etag is enabled, the ETag of cached output is cached along with it, so it isn't hashed again.
+	 * @param doc The document
+	 * @param domain The domain from which the document was accessed
+	 * @param route The RoutingContext for this document retrieval
+	 * @return A future that returns the processed document
+	 * @since 2.3
+	 */
+	public static Future<DocumentOptions> processDocument(File doc, Domain domain, RoutingContext route) {
+		return _processFile(doc, domain, route);
+	}
+
+	// Reads (or fetches from the cache) and processes a document on disk
+	private static Future<DocumentOptions> _processFile(File doc, Domain domain, RoutingContext route) {
+		// Normalized so cache keys match the paths the file watcher reports
+		String path = doc.toPath().toAbsolutePath().normalize().toString();
+		String name = doc.getName();
+		String ext = name.contains(".") ? name.substring(name.lastIndexOf('.')+1) : "";
+		DocumentProcessor[] procs = _procs.toArray(new DocumentProcessor[0]);
+
+		// Fetch modification time to validate cached content and templates against
+		return vertx().fileSystem().props(path).compose(props -> {
+			long mtime = props.lastModifiedTime();
+
+			// Serve cached output if all processors allow it
+			String outKey = path+'\n'+domain.name();
+			String etagKey = outKey+"\0etag";
+			boolean cacheOutput = procs.length > 0 && isCacheable(path, domain);
+			boolean etags = (boolean) config().getNodeOrDefault("server.documents.etag", false);
+			if(cacheOutput) {
+				String output = _cache.get(outKey, mtime);
+				if(output != null) {
+					DocumentOptions ops = new DocumentOptions(output, name, ext, domain, new DocumentProcessor[0], route);
+
+					// Hash cached output once, then keep its ETag with it
+					if(etags) {
+						String etag = _cache.get(etagKey, mtime);
+						if(etag == null)
+							_cache.put(etagKey, mtime, ops.etag());
+						else
+							ops.etag(etag);
+					}
+
+					return Future.succeededFuture(ops);
 				}
-			});
+			}
+
+			// Use cached source, or read it
+			Future<String> source;
+			String cachedSource = _cache.get(path, mtime);
+			if(cachedSource == null) {
+				source = vertx().fileSystem().readFile(path).map(buf -> {
+					String str = buf.toString(Charset.defaultCharset());
+					_cache.put(path, mtime, str);
+					return str;
+				});
+			} else {
+				source = Future.succeededFuture(cachedSource);
+			}
+
+			return source
+					.compose(document -> _execute(new DocumentOptions(document, name, ext, domain, procs, route).source(path, mtime)))
+					.onSuccess(ops -> {
+						if(cacheOutput) {
+							_cache.put(outKey, mtime, ops.content());
+							if(etags)
+								_cache.put(etagKey, mtime, ops.etag());
+						}
+					});
 		});
 	}
+
+	// Runs processors on a document, skipping execution entirely if there are none
+	private static Future<DocumentOptions> _execute(DocumentOptions ops) {
+		return ops.hasProcessors() ? ops.execute() : Future.succeededFuture(ops);
+	}
+
+	/**
+	 * Processes the provided document using registered StreamingDocumentProcessors, writing output to the route's response as it is produced.
+	 * If any normal DocumentProcessors are registered, they are run on the entire document first, and their result is then streamed.
+	 * The response is ended once the document has been fully written.
+	 * @param doc The document
+	 * @param domain The domain from which the document was accessed
+	 * @param route The RoutingContext for this document retrieval
+	 * @return A future that completes once the response has been ended, or fails if reading or processing the document failed
+	 * @since 2.3
+	 */
+	public static Future<Void> processStreaming(File doc, Domain domain, RoutingContext route) {
+		String name = doc.getName();
+		String ext = name.contains(".") ? name.substring(name.lastIndexOf('.')+1) : "";
+		StreamingPipeline pipeline = new StreamingPipeline(
+				_streamProcs.toArray(new StreamingDocumentProcessor[0]),
+				name,
+				ext,
+				domain,
+				ResponseUtils.mimeForFilename(name),
+				route
+		);
+
+		if(_procs.isEmpty()) {
+			// Stream straight from the file
+			return vertx().fileSystem().open(doc.getAbsolutePath(), new OpenOptions().setRead(true).setWrite(false).setCreate(false)).compose(file -> {
+				file.setReadBufferSize(STREAM_CHUNK_SIZE);
+
+				return pipeline.run(file).onComplete(res -> file.close());
+			});
+		} else {
+			// Run normal processors first, then stream their result (unless one of them ended the response)
+			return processBuffer(doc, domain, route).compose(content -> {
+				if(route.response().ended())
+					return Future.succeededFuture();
+				else
+					return pipeline.run(content);
+			});
+		}
+	}
+
+	/**
+	 * Returns whether all registered processors allow their output for the specified document to be cached
+	 * @param path The absolute path of the document
+	 * @param domain The domain the document is being served from
+	 * @return Whether the processed document can be cached
+	 * @since 2.3
+	 */
+	public static boolean isCacheable(String path, Domain domain) {
+		for(DocumentProcessor proc : _procs)
+			if(!proc.cacheable(path, domain))
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Returns the cache used for document sources and cacheable processed documents
+	 * @return The document cache
+	 * @since 2.3
+	 */
+	public static DocumentCache cache() {
+		return _cache;
+	}
 	
 	/**
 	 * Registers a normal (non-blocking) document processor
@@ -88,6 +237,25 @@ public class Documents {
 		_procs.add(proc);
 	}
 	
+	/**
+	 * Registers a streaming document processor.
+	 * Once any streaming processors are registered, documents are served with processStreaming(...) instead of process(...).
+	 * @param proc The StreamingDocumentProcessor
+	 * @since 2.3
+	 */
+	public static void registerStreamingProcessor(StreamingDocumentProcessor proc) {
+		_streamProcs.add(proc);
+	}
+
+	/**
+	 * Returns whether any streaming document processors are registered
+	 * @return Whether any streaming document processors are registered
+	 * @since 2.3
+	 */
+	public static boolean hasStreamingProcessors() {
+		return !_streamProcs.isEmpty();
+	}
+	
 	/**
 	 * Registers a file extension to be run through document processors
 	 * @param extension The file extension to register, e.g. "txt"
@@ -0,0 +1,137 @@
+package net.termer.twine.documents;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.ext.web.RoutingContext;
+import net.termer.twine.domains.Domain;
+
+import java.util.ArrayList;
+
+/**
+ * Utility class for a single StreamingDocumentProcessor to receive information about and output processed chunks of a document.
+ * A new StreamingDocumentOptions object is created for every processor on every document, so processors can keep per-document state in it.
+ * @author termer
+ * @since 2.3
+ */
+public class StreamingDocumentOptions {
+	private final StreamingPipeline _pipeline;
+	private final int _index;
+	private final StreamingDocumentProcessor _proc;
+	private ArrayList<Buffer> _output = new ArrayList<>();
+	private Object _state = null;
+
+	// Stores values
+	protected StreamingDocumentOptions(StreamingPipeline pipeline, int index, StreamingDocumentProcessor proc) {
+		_pipeline = pipeline;
+		_index = index;
+		_proc = proc;
+	}
+
+	/**
+	 * Returns the processor these options belong to
+	 * @return The processor these options belong to
+	 * @since 2.3
+	 */
+	protected StreamingDocumentProcessor processor() {
+		return _proc;
+	}
+
+	/**
+	 * Returns the RoutingContext for the request that requested this document
+	 * @return The request's RoutingContext object
+	 * @since 2.3
+	 */
+	public RoutingContext route() {
+		return _pipeline.route();
+	}
+
+	/**
+	 * Returns the name (usually filename) of the document
+	 * @return The name of the document
+	 * @since 2.3
+	 */
+	public String name() {
+		return _pipeline.name();
+	}
+
+	/**
+	 * Returns the extension of the document
+	 * @return The extension of the document
+	 * @since 2.3
+	 */
+	public String extension() {
+		return _pipeline.extension();
+	}
+
+	/**
+	 * Returns the domain which this document is being served from
+	 * @return This document's domain
+	 * @since 2.3
+	 */
+	public Domain domain() {
+		return _pipeline.domain();
+	}
+
+	/**
+	 * Returns the state object this processor stored for this document, or null if none has been stored
+	 * @return This processor's state for this document
+	 * @since 2.3
+	 */
+	public Object state() {
+		return _state;
+	}
+	/**
+	 * Stores a state object for this processor to use on later chunks of this document
+	 * @param state The state object
+	 * @return This, to be used fluently
+	 * @since 2.3
+	 */
+	public StreamingDocumentOptions state(Object state) {
+		_state = state;
+		return this;
+	}
+
+	/**
+	 * Pushes a buffer of output to the next processor, or the response if this is the last processor.
+	 * Output is passed on once next() or end() is called.
+	 * @param output The output to push
+	 * @return This, to be used fluently
+	 * @since 2.3
+	 */
+	public StreamingDocumentOptions push(Buffer output) {
+		if(output.length() > 0)
+			_output.add(output);
+		return this;
+	}
+
+	/**
+	 * Passes on all pushed output and moves on to the next chunk
+	 * @since 2.3
+	 */
+	public void next() {
+		_pipeline.stageDone(_index, _takeOutput(), false);
+	}
+	/**
+	 * Passes on all pushed output, then skips this processor and all processors after it for the rest of the document.
+	 * Remaining chunks will be written to the response as they are read.
+	 * @since 2.3
+	 */
+	public void end() {
+		_pipeline.stageDone(_index, _takeOutput(), true);
+	}
+	/**
+	 * Ends processing of this document with an error
+	 * @param error The error which caused this processor to fail
+	 * @since 2.3
+	 */
+	public void fail(Throwable error) {
+		_output.clear();
+		_pipeline.fail(error);
+	}
+
+	// Returns pushed output and starts a new list for the next chunk
+	private ArrayList<Buffer> _takeOutput() {
+		ArrayList<Buffer> out = _output;
+		_output = new ArrayList<>();
+		return out;
+	}
+}
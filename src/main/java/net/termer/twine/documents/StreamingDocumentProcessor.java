@@ -0,0 +1,32 @@
+package net.termer.twine.documents;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Interface for document processing that works on chunks of a document as they are read, rather than on the entire document at once.
+ * Processed chunks are written to the response as soon as they leave the last processor, so documents never have to be held in memory all at once.
+ * Note that chunk boundaries are arbitrary, and may fall in the middle of a multi-byte character or a piece of text a processor is looking for.
+ * Processors that need to match text should keep any unfinished tail of a chunk in their state and prepend it to the next chunk.
+ * @author termer
+ * @since 2.3
+ */
+public interface StreamingDocumentProcessor {
+	/**
+	 * Processes a single chunk of a document.
+	 * The processor should push zero or more buffers of output using options.push(...), then call options.next() once it is done with the chunk.
+	 * @param chunk The chunk to process
+	 * @param options The options for this processor and document
+	 * @since 2.3
+	 */
+	void process(Buffer chunk, StreamingDocumentOptions options);
+
+	/**
+	 * Called once all chunks of the document have been processed, so any remaining output can be pushed.
+	 * Like process(...), this method must end with a call to options.next(), options.end() or options.fail(...).
+	 * @param options The options for this processor and document
+	 * @since 2.3
+	 */
+	default void finish(StreamingDocumentOptions options) {
+		options.next();
+	}
+}
@@ -0,0 +1,229 @@
+package net.termer.twine.documents;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.web.RoutingContext;
+import net.termer.twine.domains.Domain;
+
+import java.util.List;
+
+/**
+ * Runs chunks of a document through StreamingDocumentProcessors one at a time and writes the results to the response.
+ * Reading is paused while a chunk is being processed or while the response's write queue is full.
+ * @author termer
+ * @since 2.3
+ */
+class StreamingPipeline {
+	private final RoutingContext _route;
+	private final String _name;
+	private final String _extension;
+	private final Domain _domain;
+	private final String _contentType;
+	private final StreamingDocumentOptions[] _stages;
+	// Continuations waiting for each stage to finish its current chunk
+	private final Handler<List<Buffer>>[] _pending;
+	private int _bypassFrom;
+	private boolean _failed = false;
+	private ReadStream<Buffer> _source = null;
+	private final Promise<Void> _promise = Promise.promise();
+
+	// Stores values and creates stages
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	StreamingPipeline(StreamingDocumentProcessor[] procs, String name, String extension, Domain domain, String contentType, RoutingContext route) {
+		_route = route;
+		_name = name;
+		_extension = extension.toLowerCase();
+		_domain = domain;
+		_contentType = contentType;
+		_stages = new StreamingDocumentOptions[procs.length];
+		for(int i = 0; i < procs.length; i++)
+			_stages[i] = new StreamingDocumentOptions(this, i, procs[i]);
+		_pending = new Handler[procs.length];
+		_bypassFrom = procs.length;
+	}
+
+	RoutingContext route() {
+		return _route;
+	}
+	String name() {
+		return _name;
+	}
+	String extension() {
+		return _extension;
+	}
+	Domain domain() {
+		return _domain;
+	}
+
+	/**
+	 * Processes all chunks from the provided stream and ends the response
+	 * @param source The stream to read chunks from
+	 * @return A future that completes once the response has been ended, or fails if processing failed
+	 * @since 2.3
+	 */
+	Future<Void> run(ReadStream<Buffer> source) {
+		_source = source;
+		source.exceptionHandler(this::fail);
+		source.endHandler(v -> _finish(0, v2 -> _end()));
+		source.handler(chunk -> {
+			source.pause();
+			_feed(0, chunk, v -> source.resume());
+		});
+
+		// Stop if the client goes away, since a drain handler waiting on a full write queue would never be called
+		HttpServerResponse res = _route.response();
+		res.closeHandler(v -> {
+			if(!_promise.future().isComplete())
+				fail(new IllegalStateException("Response was closed before the document was fully written"));
+		});
+		res.exceptionHandler(err -> {
+			if(!_promise.future().isComplete())
+				fail(err);
+		});
+
+		return _promise.future();
+	}
+	/**
+	 * Processes a single buffer as the entire document and ends the response
+	 * @param document The document
+	 * @return A future that completes once the response has been ended, or fails if processing failed
+	 * @since 2.3
+	 */
+	Future<Void> run(Buffer document) {
+		_feed(0, document, v -> _finish(0, v2 -> _end()));
+
+		return _promise.future();
+	}
+
+	/**
+	 * Called by a stage when it is done with its current chunk
+	 * @param index The stage's index
+	 * @param output The stage's output
+	 * @param bypass Whether this stage and all stages after it should be skipped from now on
+	 * @since 2.3
+	 */
+	void stageDone(int index, List<Buffer> output, boolean bypass) {
+		if(bypass)
+			_bypassFrom = Math.min(_bypassFrom, index);
+
+		Handler<List<Buffer>> cont = _pending[index];
+		_pending[index] = null;
+
+		if(cont != null && !_failed)
+			cont.handle(output);
+	}
+
+	/**
+	 * Stops processing with an error
+	 * @param error The error
+	 * @since 2.3
+	 */
+	void fail(Throwable error) {
+		if(_failed)
+			return;
+		_failed = true;
+
+		if(_source != null) {
+			_source.handler(null);
+			_source.endHandler(null);
+		}
+
+		_promise.tryFail(error);
+	}
+
+	// Passes a chunk through the stage at the specified index and all stages after it
+	private void _feed(int index, Buffer chunk, Handler<Void> done) {
+		if(_failed)
+			return;
+
+		if(index >= _bypassFrom) {
+			_write(chunk, done);
+			return;
+		}
+
+		StreamingDocumentOptions stage = _stages[index];
+		_pending[index] = out -> _feedAll(index+1, out, 0, done);
+
+		try {
+			stage.processor().process(chunk, stage);
+		} catch(Exception e) {
+			fail(e);
+		}
+	}
+
+	// Passes a list of chunks through the stage at the specified index, one after another
+	private void _feedAll(int index, List<Buffer> chunks, int chunkIndex, Handler<Void> done) {
+		if(chunkIndex >= chunks.size())
+			done.handle(null);
+		else
+			_feed(index, chunks.get(chunkIndex), v -> _feedAll(index, chunks, chunkIndex+1, done));
+	}
+
+	// Lets the stage at the specified index and all stages after it push their remaining output
+	private void _finish(int index, Handler<Void> done) {
+		if(_failed)
+			return;
+
+		if(index >= _bypassFrom) {
+			done.handle(null);
+			return;
+		}
+
+		StreamingDocumentOptions stage = _stages[index];
+		_pending[index] = out -> _feedAll(index+1, out, 0, v -> _finish(index+1, done));
+
+		try {
+			stage.processor().finish(stage);
+		} catch(Exception e) {
+			fail(e);
+		}
+	}
+
+	// Writes a chunk to the response, waiting for the write queue to drain if it's full
+	private void _write(Buffer chunk, Handler<Void> done) {
+		HttpServerResponse res = _route.response();
+
+		if(res.closed()) {
+			fail(new IllegalStateException("Response was closed before the document was fully written"));
+			return;
+		}
+
+		_prepareHeaders(res);
+		res.write(chunk);
+
+		if(res.writeQueueFull())
+			res.drainHandler(v -> done.handle(null));
+		else
+			done.handle(null);
+	}
+
+	// Ends the response
+	private void _end() {
+		HttpServerResponse res = _route.response();
+
+		if(!res.ended()) {
+			_prepareHeaders(res);
+			res.end();
+		}
+
+		_promise.tryComplete();
+	}
+
+	// Sets headers that need to be present before anything is written
+	private void _prepareHeaders(HttpServerResponse res) {
+		if(res.headWritten())
+			return;
+
+		if(res.headers().get("Content-Type") == null && _contentType != null)
+			res.putHeader("content-type", _contentType);
+
+		// Chunked encoding only exists in HTTP/1.1 (HTTP/2 streams are framed already)
+		if(_route.request().version() == HttpVersion.HTTP_1_1)
+			res.setChunked(true);
+	}
+}
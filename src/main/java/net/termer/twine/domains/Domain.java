@@ -14,9 +14,11 @@ public class Domain {
     private final String _serverError;
     private final boolean _ignore404;
     private final CORS _cors;
+    private final TLS _tls;
+    private final PathCache _pathCache;
 
     // Stores values
-    protected Domain(String name, String[] hostnames, String root, String index, String notFound, String serverError, boolean ignore404, CORS cors) {
+    protected Domain(String name, String[] hostnames, String root, String index, String notFound, String serverError, boolean ignore404, CORS cors, TLS tls, PathCache pathCache) {
         _name = name;
         _hostnames = hostnames;
         if(!root.endsWith("/")) root+='/';
@@ -26,6 +28,8 @@ public class Domain {
         _serverError = serverError;
         _ignore404 = ignore404;
         _cors = cors;
+        _tls = tls;
+        _pathCache = pathCache;
     }
 
     /**
@@ -100,6 +104,25 @@ public class Domain {
         return _cors;
     }
 
+    /**
+     * Returns TLS settings for this domain
+     * @return TLS settings for this domain
+     * @since 2.3
+     */
+    public TLS tls() {
+        return _tls;
+    }
+
+    /**
+     * Returns the cache of request paths resolved to files on this domain.
+     * The cache belongs to this Domain object, so it is discarded along with it when configurations are reloaded.
+     * @return This domain's path resolution cache
+     * @since 2.3
+     */
+    public PathCache pathCache() {
+        return _pathCache;
+    }
+
     public String toString() {
         return _name+':'+String.join(",", _hostnames);
     }
@@ -180,4 +203,52 @@ public class Domain {
             return _allowCredentials;
         }
     }
+
+    /**
+     * Class to contain TLS settings
+     * @since 2.3
+     */
+    public static class TLS {
+        private final String _cert;
+        private final String _key;
+
+        // No certificate
+        protected TLS() {
+            _cert = null;
+            _key = null;
+        }
+
+        // Stores values
+        protected TLS(String cert, String key) {
+            _cert = cert;
+            _key = key;
+        }
+
+        /**
+         * Returns whether this domain has its own certificate
+         * @return Whether this domain has its own certificate
+         * @since 2.3
+         */
+        public boolean enabled() {
+            return _cert != null;
+        }
+
+        /**
+         * Returns the path of this domain's PEM certificate (or certificate chain), or null if it doesn't have its own certificate
+         * @return The path of this domain's certificate
+         * @since 2.3
+         */
+        public String cert() {
+            return _cert;
+        }
+
+        /**
+         * Returns the path of this domain's PEM private key, or null if it doesn't have its own certificate
+         * @return The path of this domain's private key
+         * @since 2.3
+         */
+        public String key() {
+            return _key;
+        }
+    }
 }
\ No newline at end of file
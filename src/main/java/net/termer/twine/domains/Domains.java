@@ -1,8 +1,12 @@
 package net.termer.twine.domains;
 
+import net.termer.twine.Twine;
 import net.termer.twine.exceptions.ConfigException;
 import net.termer.twine.utils.RequestUtils;
+import net.termer.twine.utils.YamlConfig;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -17,8 +21,14 @@ public class Domains {
 	private final Domain[] _domains;
 	private final Domain _default;
 	// HashMap for quicker access to domains by their hostname without having to iterate over domains manually
-	// Key: hostname (example.com), value: Domain object
+	// Key: lowercase hostname (example.com), value: Domain object
 	private final HashMap<String, Domain> _domainsMap = new HashMap<>();
+	// Domains by wildcard hostname, key: lowercase suffix after "*." (example.com for *.example.com), value: Domain object
+	private final HashMap<String, Domain> _wildcardsMap = new HashMap<>();
+	// Domains by name, key: name, value: Domain object
+	private final HashMap<String, Domain> _namesMap = new HashMap<>();
+	// Domains by root directory, key: absolute normalized root, value: Domain objects with that root
+	private final HashMap<Path, ArrayList<Domain>> _rootsMap = new HashMap<>();
 	
 	/**
 	 * Converts the provided raw YAML maps into a Domains object
@@ -28,6 +38,22 @@ public class Domains {
 	 * @since 2.0
 	 */
 	public Domains(Map<String, Map<String, Object>> domainsMap, String defaultName) throws ConfigException {
+		this(domainsMap, defaultName, Twine.config());
+	}
+	/**
+	 * Converts the provided raw YAML maps into a Domains object, using settings (such as path resolution cache settings) from the specified config
+	 * @param domainsMap The domains Map to index
+	 * @param defaultName The name of the default domain
+	 * @param conf The config to read settings from, or null to use defaults
+	 * @throws ConfigException If there any entries are missing fields or have other similar problems
+	 * @since 2.3
+	 */
+	public Domains(Map<String, Map<String, Object>> domainsMap, String defaultName, YamlConfig conf) throws ConfigException {
+		// Path resolution cache settings
+		boolean cacheEnabled = conf == null || (boolean) conf.getNodeOrDefault("server.resolutionCache.enable", true);
+		int cacheMaxEntries = conf == null ? 10000 : (int) conf.getNodeOrDefault("server.resolutionCache.maxEntries", 10000);
+		int cacheTtl = conf == null ? 5000 : (int) conf.getNodeOrDefault("server.resolutionCache.ttl", 5000);
+
 		ArrayList<Domain> domains = new ArrayList<>();
 		for(String name: domainsMap.keySet()) {
 			Map<String, Object> dom = domainsMap.get(name);
@@ -81,6 +107,19 @@ public class Domains {
 				cors = new Domain.CORS();
 			}
 
+			// The TLS settings for the domain
+			Domain.TLS tls;
+			if(dom.containsKey("tls")) {
+				Map<String, Object> tlsMap = (Map<String, Object>) dom.get("tls");
+
+				if(!(tlsMap.get("cert") instanceof String) || !(tlsMap.get("key") instanceof String))
+					throw new ConfigException("twine.yml", "Field \"tls\" must contain \"cert\" and \"key\" strings");
+
+				tls = new Domain.TLS((String) tlsMap.get("cert"), (String) tlsMap.get("key"));
+			} else {
+				tls = new Domain.TLS();
+			}
+
 			// Create domain object
 			Domain domainObj = new Domain(
 					name,
@@ -90,13 +129,23 @@ public class Domains {
 					(String) dom.get("notFound"),
 					(String) dom.get("serverError"),
 					dom.get("ignore404") != null && (boolean) dom.get("ignore404"),
-					cors
+					cors,
+					tls,
+					new PathCache(cacheEnabled ? cacheMaxEntries : 0, cacheTtl)
 			);
 
-			// Add it to list and put it in the quick access map
+			// Add it to list and put it in the quick access maps
 			domains.add(domainObj);
+			_namesMap.put(name, domainObj);
+			if(domainObj.root() != null)
+				_rootsMap.computeIfAbsent(Paths.get(domainObj.root()).toAbsolutePath().normalize(), k -> new ArrayList<>()).add(domainObj);
 			for(String hostname : hostnames) {
-				_domainsMap.put(hostname, domainObj);
+				String host = hostname.toLowerCase();
+
+				if(host.startsWith("*."))
+					_wildcardsMap.put(host.substring(2), domainObj);
+				else
+					_domainsMap.put(host, domainObj);
 			}
 		}
 
@@ -123,13 +172,30 @@ public class Domains {
 	}
 	
 	/**
-	 * Returns the Domain object for the specified hostname, or null if it doesn't exist
+	 * Returns the Domain object for the specified hostname, or null if it doesn't exist.
+	 * Hostnames are matched case-insensitively. Exact hostnames are matched first, then wildcard hostnames (such as *.example.com), most specific first.
+	 * A wildcard hostname matches subdomains at any depth (*.example.com matches a.example.com and a.b.example.com), but not the domain itself (example.com).
 	 * @param hostname The hostname
 	 * @return The corresponding Domain object
 	 * @since 2.0
 	 */
 	public Domain byHostname(String hostname) {
-		return _domainsMap.get(hostname);
+		if(hostname == null)
+			return null;
+
+		String host = _lowerCase(hostname);
+		Domain dom = _domainsMap.get(host);
+
+		// Check wildcards by each suffix of the hostname, longest first
+		if(dom == null && !_wildcardsMap.isEmpty()) {
+			int dot = host.indexOf('.');
+			while(dot > -1 && dom == null) {
+				dom = _wildcardsMap.get(host.substring(dot+1));
+				dot = host.indexOf('.', dot+1);
+			}
+		}
+
+		return dom;
 	}
 	/**
 	 * Returns the Domain object for the specified Host header, or null if it doesn't exist, or the default domain if the Host header is null.
@@ -140,7 +206,7 @@ public class Domains {
 	 * @since 2.0
 	 */
 	public Domain byHostHeader(String host) {
-		return _domainsMap.get(RequestUtils.domain(host));
+		return byHostname(RequestUtils.domain(host));
 	}
 	/**
 	 * Returns the Domain object for the specified name/alias, or null if it doesn't exist
@@ -149,16 +215,7 @@ public class Domains {
 	 * @since 1.0-alpha
 	 */
 	public Domain byName(String name) {
-		Domain dom = null;
-
-		for(Domain d : _domains) {
-			if(d.name().equals(name)) {
-				dom = d;
-				break;
-			}
-		}
-		
-		return dom;
+		return name == null ? null : _namesMap.get(name);
 	}
 
 	/**
@@ -206,6 +263,29 @@ public class Domains {
 			return dom;
 	}
 	
+	/**
+	 * Clears the path resolution caches of all domains
+	 * @since 2.3
+	 */
+	public void clearCaches() {
+		for(Domain dom : _domains)
+			dom.pathCache().clear();
+	}
+	/**
+	 * Clears the path resolution caches of all domains whose root contains the specified path.
+	 * Only the path's ancestors are looked up, so this doesn't depend on the amount of domains.
+	 * @param path The absolute, normalized path of a changed file or directory
+	 * @since 2.3
+	 */
+	public void clearCachesFor(Path path) {
+		for(Path dir = path; dir != null; dir = dir.getParent()) {
+			ArrayList<Domain> doms = _rootsMap.get(dir);
+			if(doms != null)
+				for(Domain dom : doms)
+					dom.pathCache().clear();
+		}
+	}
+	
 	/**
 	 * Returns whether a configuration exists for the specified hostname
 	 * @param hostname The hostname
@@ -213,6 +293,17 @@ public class Domains {
 	 * @since 1.0-alpha
 	 */
 	public boolean exists(String hostname) {
-		return _domainsMap.containsKey(hostname);
+		return byHostname(hostname) != null;
+	}
+
+	// Returns the string in lowercase, without copying it if it's already lowercase
+	private static String _lowerCase(String str) {
+		for(int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if(c >= 'A' && c <= 'Z')
+				return str.toLowerCase();
+		}
+
+		return str;
 	}
 }
@@ -0,0 +1,124 @@
+package net.termer.twine.domains;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of request paths that have been resolved to files on disk for a single domain.
+ * Both successful resolutions and known misses are cached, so that repeated requests for the same path do not need to touch the filesystem.
+ * Entries are evicted in least-recently-used order once the cache is full, and expire after the configured TTL.
+ * @author termer
+ * @since 2.3
+ */
+public class PathCache {
+	private final int _maxEntries;
+	private final long _ttl;
+	private final LinkedHashMap<String, Entry> _entries;
+
+	/**
+	 * Creates a new PathCache
+	 * @param maxEntries The maximum amount of paths to keep in the cache, or 0 to disable caching
+	 * @param ttl The amount of time (in milliseconds) to keep each entry for, or 0 to keep entries until they are evicted
+	 * @since 2.3
+	 */
+	public PathCache(int maxEntries, long ttl) {
+		_maxEntries = Math.max(maxEntries, 0);
+		_ttl = Math.max(ttl, 0);
+		_entries = new LinkedHashMap<String, PathCache.Entry>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, PathCache.Entry> eldest) {
+				return size() > _maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Returns whether this cache stores any entries at all
+	 * @return Whether this cache is enabled
+	 * @since 2.3
+	 */
+	public boolean enabled() {
+		return _maxEntries > 0;
+	}
+
+	/**
+	 * Returns the cached entry for the specified request path, or null if the path is not cached or its entry has expired
+	 * @param path The decoded request path
+	 * @return The cached entry for the path, or null if none
+	 * @since 2.3
+	 */
+	public synchronized Entry get(String path) {
+		if(_maxEntries < 1)
+			return null;
+
+		Entry entry = _entries.get(path);
+
+		// Drop expired entries
+		if(entry != null && _ttl > 0 && System.currentTimeMillis() > entry._expires) {
+			_entries.remove(path);
+			return null;
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Caches the result of resolving the specified request path
+	 * @param path The decoded request path
+	 * @param file The file the path resolved to, or null if no file was found for it
+	 * @since 2.3
+	 */
+	public synchronized void put(String path, String file) {
+		if(_maxEntries > 0)
+			_entries.put(path, new Entry(file, _ttl > 0 ? System.currentTimeMillis()+_ttl : Long.MAX_VALUE));
+	}
+
+	/**
+	 * Removes all entries from this cache
+	 * @since 2.3
+	 */
+	public synchronized void clear() {
+		_entries.clear();
+	}
+
+	/**
+	 * Returns the amount of entries currently in this cache, including ones that have expired but not yet been removed
+	 * @return The amount of entries in this cache
+	 * @since 2.3
+	 */
+	public synchronized int size() {
+		return _entries.size();
+	}
+
+	/**
+	 * A single cached path resolution
+	 * @since 2.3
+	 */
+	public static class Entry {
+		private final String _file;
+		private final long _expires;
+
+		// Stores values
+		private Entry(String file, long expires) {
+			_file = file;
+			_expires = expires;
+		}
+
+		/**
+		 * Returns the file the path resolved to, or null if the path is a known miss
+		 * @return The file the path resolved to, or null
+		 * @since 2.3
+		 */
+		public String file() {
+			return _file;
+		}
+
+		/**
+		 * Returns whether this entry records that no file exists for the path
+		 * @return Whether this entry is a known miss
+		 * @since 2.3
+		 */
+		public boolean miss() {
+			return _file == null;
+		}
+	}
+}
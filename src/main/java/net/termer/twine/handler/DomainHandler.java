@@ -22,8 +22,7 @@ public class DomainHandler implements Handler<RoutingContext> {
     public void handle(RoutingContext r) {
         try {
             // Resolve domain
-            String domain = RequestUtils.domain(r.request().host());
-            Domain dom = domains().byHostnameOrDefault(domain);
+            Domain dom = RequestUtils.requestDomain(r);
 
             // Setup CORS headers
             if(dom.cors().enabled()) {
@@ -68,8 +67,18 @@ public class DomainHandler implements Handler<RoutingContext> {
                     File file = new File(res.result());
 
                     // Handle processing document
-                    if(Documents.isValidExtension(file.getName())) {
-                        Documents.process(file, dom, r).onComplete(docRes -> {
+                    if(Documents.isValidExtension(file.getName()) && Documents.hasStreamingProcessors()) {
+                        Documents.processStreaming(file, dom, r).onFailure(err -> {
+                            logger().error("Failed to process document "+file.getName());
+
+                            // Pass to error handler, or drop the connection if output was already sent
+                            if(r.response().headWritten())
+                                r.response().reset();
+                            else
+                                r.fail(err);
+                        });
+                    } else if(Documents.isValidExtension(file.getName())) {
+                        Documents.processDocument(file, dom, r).onComplete(docRes -> {
                             if(docRes.succeeded()) {
                                 // Send response if not ended
                                 if(!r.response().ended()) {
@@ -77,8 +86,20 @@ public class DomainHandler implements Handler<RoutingContext> {
                                     if(r.response().headers().get("Content-Type") == null)
                                         r.response().putHeader("content-type", ResponseUtils.mimeForFilename(file.getName()));
 
+                                    // Tag processed output so clients can revalidate it
+                                    if((boolean) config().getNodeOrDefault("server.documents.etag", false)) {
+                                        String etag = docRes.result().etag();
+                                        r.response().putHeader("etag", etag);
+
+                                        // Only successful responses can be answered with 304, not statuses set by processors
+                                        if(r.response().getStatusCode() == 200 && ResponseUtils.isFresh(r.request(), etag, -1)) {
+                                            ResponseUtils.sendNotModified(r);
+                                            return;
+                                        }
+                                    }
+
                                     // Send processed document
-                                    r.response().end(docRes.result());
+                                    r.response().end(docRes.result().buffer());
                                 }
                             } else {
                                 logger().error("Failed to process document "+file.getName());
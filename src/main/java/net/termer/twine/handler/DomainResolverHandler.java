@@ -0,0 +1,20 @@
+package net.termer.twine.handler;
+
+import io.vertx.core.Handler;
+import io.vertx.ext.web.RoutingContext;
+import net.termer.twine.utils.RequestUtils;
+
+/**
+ * Handler class to resolve the Domain a request is for.
+ * This is the first handler on the router, so every later handler can get the request's Domain with RequestUtils.requestDomain(...) without looking it up again.
+ * @author termer
+ * @since 2.3
+ */
+public class DomainResolverHandler implements Handler<RoutingContext> {
+    public void handle(RoutingContext r) {
+        RequestUtils.requestDomain(r);
+
+        // Pass to next handler
+        r.next();
+    }
+}
\ No newline at end of file
@@ -15,8 +15,7 @@ import static net.termer.twine.Twine.*;
 public class ErrorHandler implements Handler<RoutingContext> {
     public void handle(RoutingContext r) {
         // Resolve domain
-        String domain = RequestUtils.domain(r.request().host());
-        Domain dom = domains().byHostnameOrDefault(domain);
+        Domain dom = RequestUtils.requestDomain(r);
 
         logger().error("Internal server error:");
         r.failure().printStackTrace();
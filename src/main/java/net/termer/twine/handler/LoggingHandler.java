@@ -3,13 +3,13 @@ package net.termer.twine.handler;
 import io.vertx.core.Handler;
 import io.vertx.ext.web.RoutingContext;
 import net.termer.twine.domains.Domain;
+import net.termer.twine.utils.AccessLogFormatter;
 import net.termer.twine.utils.RequestUtils;
-import net.termer.twine.utils.files.BlockingWriter;
+import net.termer.twine.utils.files.AccessLogWriter;
 
-import java.io.IOException;
-import java.util.Date;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static net.termer.twine.Twine.*;
 
@@ -19,53 +19,114 @@ import static net.termer.twine.Twine.*;
  * @since 2.0
  */
 public class LoggingHandler implements Handler<RoutingContext> {
-    private final BlockingQueue<String> writeQueue = new LinkedBlockingQueue<>();
-
-    public LoggingHandler() {
-        // Setup and start writing thread
-        Thread writerThread = new Thread(() -> {
-            while(true) {
-                try {
-                    String ln = writeQueue.take()+'\n';
-                    BlockingWriter.append((String) config().getNode("server.logging.file"), ln);
-                } catch (IOException e) {
-                    logger().error("Failed to write to access log:");
-                    e.printStackTrace();
-                } catch (InterruptedException e) {
-                    logger().error("Failed to read access log message queue:");
-                    e.printStackTrace();
+    private volatile AccessLogWriter writer = null;
+    private volatile AccessLogFormatter formatter = null;
+
+    /**
+     * Returns the writer used to write to the access log, creating and starting it if it hasn't been created yet.
+     * The writer is created lazily because this handler is instantiated before configs are loaded.
+     * @return The access log writer
+     * @since 2.3
+     */
+    public AccessLogWriter writer() {
+        if(writer == null) {
+            synchronized(this) {
+                if(writer == null) {
+                    writer = new AccessLogWriter(
+                            (String) config().getNode("server.logging.file"),
+                            (int) config().getNodeOrDefault("server.logging.queueCapacity", 65536),
+                            (int) config().getNodeOrDefault("server.logging.bufferSize", 65536),
+                            ((Number) config().getNodeOrDefault("server.logging.flushInterval", 1000)).longValue(),
+                            overflowPolicy()
+                    );
+                    configure();
                 }
             }
-        });
-        writerThread.setName("LogWritingThread");
-        writerThread.setDaemon(true);
-        writerThread.start();
+        }
+
+        return writer;
+    }
+
+    /**
+     * Applies the current logging config to the access log writer
+     * @since 2.3
+     */
+    public void configure() {
+        AccessLogWriter w = writer();
+        w.path((String) config().getNode("server.logging.file"));
+        w.echo((boolean) config().getNodeOrDefault("server.logging.stdout", true));
+
+        // Build formatter
+        ArrayList<AccessLogFormatter.Field> fields = new ArrayList<>();
+        for(Object field : (List<?>) config().getNodeOrDefault("server.logging.fields", Arrays.asList("time", "method", "uri", "status", "bytes", "latency", "domain", "ip", "userAgent")))
+            for(AccessLogFormatter.Field f : AccessLogFormatter.Field.values())
+                if(f.key().equalsIgnoreCase(field.toString()))
+                    fields.add(f);
+        formatter = new AccessLogFormatter(
+                format(),
+                fields.toArray(new AccessLogFormatter.Field[0])
+        );
+
+        if((boolean) config().getNodeOrDefault("server.logging.rotation.enable", false)) {
+            w.rotation(
+                    ((Number) config().getNodeOrDefault("server.logging.rotation.maxSize", 104857600)).longValue(),
+                    ((Number) config().getNodeOrDefault("server.logging.rotation.interval", 86400000)).longValue(),
+                    (int) config().getNodeOrDefault("server.logging.rotation.maxFiles", 14),
+                    (boolean) config().getNodeOrDefault("server.logging.rotation.compress", true)
+            );
+        } else {
+            w.rotation(0, 0, 0, false);
+        }
+    }
+
+    // Returns the configured overflow policy, or DROP_AND_LOG if the configured one is unknown
+    private AccessLogWriter.OverflowPolicy overflowPolicy() {
+        String policy = config().getNodeOrDefault("server.logging.overflowPolicy", "DROP_AND_LOG").toString();
+        try {
+            return AccessLogWriter.OverflowPolicy.valueOf(policy.toUpperCase());
+        } catch(IllegalArgumentException e) {
+            logger().warn("Unknown access log overflow policy \""+policy+"\", using DROP_AND_LOG");
+            return AccessLogWriter.OverflowPolicy.DROP_AND_LOG;
+        }
+    }
+
+    // Returns the configured access log format, or TWINE if the configured one is unknown
+    private AccessLogFormatter.Format format() {
+        String format = config().getNodeOrDefault("server.logging.format", "TWINE").toString();
+        try {
+            return AccessLogFormatter.Format.valueOf(format.toUpperCase());
+        } catch(IllegalArgumentException e) {
+            logger().warn("Unknown access log format \""+format+"\", using TWINE");
+            return AccessLogFormatter.Format.TWINE;
+        }
     }
 
     public void handle(RoutingContext r) {
         // Check if logging is enabled
         if((boolean) config().getNode("server.logging.enable")) {
-            // Resolve domain
-            String domain = RequestUtils.domain(r.request().host());
-            Domain dom = domains().byHostnameOrDefault(domain);
-
-            // Create log line
-            String ln = new Date().toString()+
-                    " "+r.request().method().name()+
-                    " "+r.request().uri()+
-                    " ["+dom.name()+
-                    "] ("+r.request().remoteAddress().host()+
-                    " "+r.request().headers().get("User-Agent")+
-                    ")";
-
-            // Print it
-            System.out.println(ln);
-
-            // Put line in the write queue
-            writeQueue.add(ln);
+            long start = System.nanoTime();
+            boolean[] logged = { false };
+
+            // Log once the response is finished, so its status, size and latency are known.
+            // Both handlers are needed: the body end handler is the only one called for sendFile(), and the end handler is the only one called if the connection closes early.
+            Handler<Void> log = v -> {
+                if(logged[0])
+                    return;
+                logged[0] = true;
+
+                AccessLogWriter w = writer();
+
+                // Resolve domain
+                Domain dom = RequestUtils.requestDomain(r);
+
+                // Queue line to be written
+                w.write(formatter.format(r, dom.name(), System.nanoTime()-start));
+            };
+            r.addBodyEndHandler(log);
+            r.addEndHandler(res -> log.handle(null));
         }
 
         // Pass to next handler
         r.next();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,39 @@
+package net.termer.twine.handler;
+
+import io.vertx.core.Handler;
+import io.vertx.ext.web.RoutingContext;
+import net.termer.twine.metrics.Metrics;
+import net.termer.twine.utils.RequestUtils;
+
+/**
+ * Handler class to record request metrics
+ * @author termer
+ * @since 2.3
+ */
+public class MetricsHandler implements Handler<RoutingContext> {
+    public void handle(RoutingContext r) {
+        // Check if metrics are enabled
+        if(Metrics.enabled()) {
+            long start = System.nanoTime();
+            boolean[] recorded = { false };
+
+            // Record once the response is finished (see LoggingHandler for why both handlers are needed)
+            Handler<Void> record = v -> {
+                if(recorded[0])
+                    return;
+                recorded[0] = true;
+
+                String domain = RequestUtils.requestDomain(r).name();
+
+                Metrics.REQUESTS.labels(domain, Metrics.statusClass(r.response().getStatusCode())).inc();
+                Metrics.RESPONSE_BYTES.labels(domain).inc(r.response().bytesWritten());
+                Metrics.REQUEST_DURATION.labels(domain).observeNanos(System.nanoTime()-start);
+            };
+            r.addBodyEndHandler(record);
+            r.addEndHandler(res -> record.handle(null));
+        }
+
+        // Pass to next handler
+        r.next();
+    }
+}
@@ -1,6 +1,7 @@
 package net.termer.twine.handler;
 
 import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.ext.web.RoutingContext;
 import net.termer.twine.documents.Documents;
 import net.termer.twine.domains.*;
@@ -20,8 +21,7 @@ import static net.termer.twine.Twine.*;
 public class NotFoundHandler implements Handler<RoutingContext> {
     public void handle(RoutingContext r) {
         // Resolve domain
-        String domain = RequestUtils.domain(r.request().host());
-        Domain dom = domains().byHostnameOrDefault(domain);
+        Domain dom = RequestUtils.requestDomain(r);
 
         // Only send 404 if not disabled in config
         r.response().setStatusCode(dom.ignore404() ? 200 : 404);
@@ -40,11 +40,19 @@ public class NotFoundHandler implements Handler<RoutingContext> {
 
             if(exists.result()) {
                 // Handle processing documents
-                if(Documents.isValidExtension(file.getName())) {
-                    Documents.process(file, dom, r).onComplete(res -> {
+                if(Documents.isValidExtension(file.getName()) && Documents.hasStreamingProcessors()) {
+                    Documents.processStreaming(file, dom, r).onFailure(err -> {
+                        // Pass to error handler, or drop the connection if output was already sent
+                        if(r.response().headWritten())
+                            r.response().reset();
+                        else
+                            r.fail(err);
+                    });
+                } else if(Documents.isValidExtension(file.getName())) {
+                    Documents.processBuffer(file, dom, r).onComplete(res -> {
                         if(res.succeeded()) {
                             // Write document to response
-                            String processed = res.result();
+                            Buffer processed = res.result();
 
                             // Write type if not already
                             if(!r.response().ended()) {
@@ -61,8 +69,8 @@ public class NotFoundHandler implements Handler<RoutingContext> {
                         }
                     });
                 } else {
-                    // Send a file with ranges enabled
-                    ResponseUtils.sendFileRanged(r, file.getAbsolutePath(), (boolean) config().getNode("server.static.caching"));
+                    // Send the file without caching headers, since the 404 page must not be cached as the requested resource
+                    ResponseUtils.sendFileRanged(r, file.getAbsolutePath(), false);
                 }
             } else {
                 // Send generic 404 message if the 404 file cannot be found
@@ -0,0 +1,71 @@
+package net.termer.twine.handler;
+
+import io.vertx.core.Handler;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.ext.web.handler.SessionHandler;
+import net.termer.twine.utils.RequestUtils;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static net.termer.twine.Twine.config;
+
+/**
+ * Handler class to run a SessionHandler on requests that aren't excluded from sessions.
+ * Requests whose path starts with an excluded prefix, or whose domain is excluded, are passed on without loading or creating a session, so RoutingContext.session() returns null for them.
+ * @author termer
+ * @since 2.3
+ */
+public class SessionFilterHandler implements Handler<RoutingContext> {
+    private final SessionHandler handler;
+    private volatile String[] excludedPaths = new String[0];
+    private volatile HashSet<String> excludedDomains = new HashSet<>();
+
+    /**
+     * Creates a new SessionFilterHandler
+     * @param handler The SessionHandler to run on requests that aren't excluded
+     * @since 2.3
+     */
+    public SessionFilterHandler(SessionHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Applies the current session config to this handler and its SessionHandler
+     * @since 2.3
+     */
+    public void configure() {
+        handler.setLazySession((boolean) config().getNodeOrDefault("server.sessionHandling.lazy", true));
+
+        List<?> paths = (List<?>) config().getNodeOrDefault("server.sessionHandling.excludePaths", Collections.emptyList());
+        String[] pathsArr = new String[paths.size()];
+        for(int i = 0; i < pathsArr.length; i++)
+            pathsArr[i] = paths.get(i).toString();
+        excludedPaths = pathsArr;
+
+        HashSet<String> doms = new HashSet<>();
+        for(Object dom : (List<?>) config().getNodeOrDefault("server.sessionHandling.excludeDomains", Collections.emptyList()))
+            doms.add(dom.toString());
+        excludedDomains = doms;
+    }
+
+    public void handle(RoutingContext r) {
+        // Skip sessions for excluded paths
+        String path = r.normalizedPath();
+        for(String prefix : excludedPaths) {
+            if(path.startsWith(prefix)) {
+                r.next();
+                return;
+            }
+        }
+
+        // Skip sessions for excluded domains
+        if(!excludedDomains.isEmpty() && excludedDomains.contains(RequestUtils.requestDomain(r).name())) {
+            r.next();
+            return;
+        }
+
+        handler.handle(r);
+    }
+}
\ No newline at end of file
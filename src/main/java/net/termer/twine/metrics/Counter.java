@@ -0,0 +1,85 @@
+package net.termer.twine.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A counter that only goes up, backed by LongAdders so increments never contend with each other
+ * @author termer
+ * @since 2.3
+ */
+public class Counter extends LabeledMeter<Counter.Child> {
+	/**
+	 * Creates a new counter.
+	 * Counters should be registered with Metrics.register(...) to be exported.
+	 * @param name The counter's name, which should end in "_total"
+	 * @param help The counter's description
+	 * @param labelNames The names of the counter's labels
+	 * @since 2.3
+	 */
+	public Counter(String name, String help, String... labelNames) {
+		super(name, help, labelNames);
+	}
+
+	protected Child newChild() {
+		return new Child();
+	}
+
+	/**
+	 * Increments this counter by 1 (only for counters without labels)
+	 * @since 2.3
+	 */
+	public void inc() {
+		noLabels().inc();
+	}
+	/**
+	 * Increments this counter by the specified amount (only for counters without labels)
+	 * @param amount The amount to increment by
+	 * @since 2.3
+	 */
+	public void inc(long amount) {
+		noLabels().inc(amount);
+	}
+
+	public String type() {
+		return "counter";
+	}
+
+	protected void writeChild(StringBuilder out, String labels, Child child) {
+		out.append(name());
+		if(!labels.isEmpty())
+			out.append('{').append(labels).append('}');
+		out.append(' ').append(child.value()).append('\n');
+	}
+
+	/**
+	 * A counter for a single combination of label values
+	 * @since 2.3
+	 */
+	public static class Child {
+		private final LongAdder _value = new LongAdder();
+
+		/**
+		 * Increments this counter by 1
+		 * @since 2.3
+		 */
+		public void inc() {
+			_value.increment();
+		}
+		/**
+		 * Increments this counter by the specified amount
+		 * @param amount The amount to increment by
+		 * @since 2.3
+		 */
+		public void inc(long amount) {
+			_value.add(amount);
+		}
+		/**
+		 * Returns this counter's current value
+		 * @return The current value
+		 * @since 2.3
+		 */
+		public long value() {
+			return _value.sum();
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package net.termer.twine.metrics;
+
+import io.netty.util.NetUtil;
+import io.vertx.ext.web.RoutingContext;
+import net.termer.twine.utils.RequestUtils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static net.termer.twine.Twine.config;
+import static net.termer.twine.Twine.logger;
+
+/**
+ * Access rules for an internal endpoint, such as the metrics or profiler endpoint.
+ * Requests are allowed if their connection's address is in the section's allowedIps (X-Forwarded-For is not trusted), and they're for the section's domain if one is set.
+ * @author termer
+ * @since 2.3
+ */
+class EndpointAccess {
+	// Config section the rules are read from
+	private final String _section;
+	// Addresses allowed to use the endpoint (normalized), or empty to allow all
+	private volatile HashSet<String> _allowedIps = new HashSet<>(Arrays.asList("127.0.0.1", "0:0:0:0:0:0:0:1"));
+	// Domain the endpoint is available on, or empty for every domain
+	private volatile String _domain = "";
+
+	/**
+	 * Creates access rules read from a config section
+	 * @param section The config section, e.g. "server.metrics"
+	 * @since 2.3
+	 */
+	EndpointAccess(String section) {
+		_section = section;
+	}
+
+	/**
+	 * Applies the current config
+	 * @since 2.3
+	 */
+	void configure() {
+		_domain = (String) config().getNodeOrDefault(_section+".domain", "");
+
+		HashSet<String> ips = new HashSet<>();
+		for(Object ip : (List<?>) config().getNodeOrDefault(_section+".allowedIps", Arrays.asList("127.0.0.1", "::1"))) {
+			String addr = _normalizeIp(ip.toString());
+			if(addr == null)
+				logger().warn("Ignoring invalid IP address \""+ip+"\" in "+_section+".allowedIps");
+			else
+				ips.add(addr);
+		}
+		_allowedIps = ips;
+	}
+
+	/**
+	 * Returns whether a request is allowed to use the endpoint
+	 * @param r The request
+	 * @return Whether the request is allowed
+	 * @since 2.3
+	 */
+	boolean allowed(RoutingContext r) {
+		if(!_domain.isEmpty() && !_domain.equals(RequestUtils.requestDomain(r).name()))
+			return false;
+
+		HashSet<String> ips = _allowedIps;
+		return ips.isEmpty() || ips.contains(_normalizeIp(RequestUtils.resolveIp(r.request(), false)));
+	}
+
+	// Returns an IP address in a canonical form, so the same address written differently compares equal, or null if it's not an IP address
+	private static String _normalizeIp(String ip) {
+		byte[] bytes = NetUtil.createByteArrayFromIpAddressString(ip);
+		if(bytes == null)
+			return null;
+
+		try {
+			return InetAddress.getByAddress(bytes).getHostAddress();
+		} catch(UnknownHostException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package net.termer.twine.metrics;
+
+import java.util.function.Supplier;
+
+/**
+ * A meter whose value is read from a supplier whenever metrics are collected
+ * @author termer
+ * @since 2.3
+ */
+public class Gauge implements Meter {
+	private final String _name;
+	private final String _help;
+	private final String _type;
+	private final Supplier<Number> _supplier;
+
+	/**
+	 * Creates a new gauge.
+	 * Gauges should be registered with Metrics.register(...) to be exported.
+	 * @param name The gauge's name
+	 * @param help The gauge's description
+	 * @param supplier The supplier to read the gauge's value from
+	 * @since 2.3
+	 */
+	public Gauge(String name, String help, Supplier<Number> supplier) {
+		this(name, help, "gauge", supplier);
+	}
+	/**
+	 * Creates a new gauge which is exported with the specified Prometheus type.
+	 * Useful for exporting counters that are kept elsewhere, with the type "counter".
+	 * @param name The gauge's name
+	 * @param help The gauge's description
+	 * @param type The Prometheus type to export the gauge as
+	 * @param supplier The supplier to read the gauge's value from
+	 * @since 2.3
+	 */
+	public Gauge(String name, String help, String type, Supplier<Number> supplier) {
+		_name = name;
+		_help = help;
+		_type = type;
+		_supplier = supplier;
+	}
+
+	public String name() {
+		return _name;
+	}
+	public String help() {
+		return _help;
+	}
+	public String type() {
+		return _type;
+	}
+
+	public void writeSamples(StringBuilder out) {
+		out.append(_name).append(' ').append(_supplier.get()).append('\n');
+	}
+}
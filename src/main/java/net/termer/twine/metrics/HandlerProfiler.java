@@ -0,0 +1,394 @@
+package net.termer.twine.metrics;
+
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Route;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+import net.termer.twine.modules.ModuleManager;
+import net.termer.twine.modules.TwineModule;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static net.termer.twine.Twine.config;
+import static net.termer.twine.Twine.logger;
+
+/**
+ * Profiler for route handlers.
+ * Handlers registered through a profiled Router are timed every time they run on the event loop, and executions that take longer than the slow threshold are attributed to the handler's route and the module that registered it.
+ * Only a handler's own time is counted, not the time taken by handlers it synchronously passes the request to with next().
+ * The worst executions of the current and previous window are kept, along with totals for every handler.
+ * @author termer
+ * @since 2.3
+ */
+public class HandlerProfiler {
+	// All profiled handlers
+	private static final CopyOnWriteArrayList<ProfiledHandler> _handlers = new CopyOnWriteArrayList<>();
+	// Slowest executions of the current and previous window, sorted by duration (slowest first)
+	private static final ArrayList<SlowExecution> _slowest = new ArrayList<>();
+	private static final ArrayList<SlowExecution> _previousSlowest = new ArrayList<>();
+	private static long _windowStart = System.currentTimeMillis();
+	// Time spent in handlers called by the currently running handler (e.g. via next()), per thread
+	private static final ThreadLocal<long[]> _nested = ThreadLocal.withInitial(() -> new long[1]);
+	// Last time a slow execution was logged
+	private static final AtomicLong _lastWarning = new AtomicLong(0);
+
+	private static volatile boolean _enabled = false;
+	private static volatile long _slowThreshold = 10_000_000;
+	private static volatile int _topN = 20;
+	private static volatile long _window = 60000;
+	private static volatile boolean _logSlow = true;
+	// Who is allowed to view the report
+	private static final EndpointAccess _access = new EndpointAccess("server.profiler");
+
+	/**
+	 * Returns whether handlers are being profiled
+	 * @return Whether the profiler is enabled
+	 * @since 2.3
+	 */
+	public static boolean enabled() {
+		return _enabled;
+	}
+
+	/**
+	 * Applies the current profiler config
+	 * @since 2.3
+	 */
+	public static void configure() {
+		_enabled = (boolean) config().getNodeOrDefault("server.profiler.enable", false);
+		_slowThreshold = ((Number) config().getNodeOrDefault("server.profiler.slowThreshold", 10)).longValue()*1_000_000;
+		_topN = (int) config().getNodeOrDefault("server.profiler.topN", 20);
+		_window = ((Number) config().getNodeOrDefault("server.profiler.window", 60000)).longValue();
+		_logSlow = (boolean) config().getNodeOrDefault("server.profiler.logSlow", true);
+		_access.configure();
+	}
+
+	/**
+	 * Returns a Router that wraps every handler registered through it (including failure and error handlers) with a profiled handler.
+	 * Handlers are attributed to the module that is being initialized when they're registered, or otherwise to the module whose package contains the handler's class.
+	 * Blocking handlers are not profiled, as they don't run on the event loop.
+	 * @param router The Router to profile
+	 * @return The profiled Router
+	 * @since 2.3
+	 */
+	public static Router profile(Router router) {
+		return (Router) Proxy.newProxyInstance(
+				Router.class.getClassLoader(),
+				new Class<?>[] { Router.class },
+				new ProfilingProxy(router, router)
+		);
+	}
+
+	/**
+	 * Wraps a handler with a profiled handler
+	 * @param handler The handler to wrap
+	 * @param route A description of the route the handler is registered on
+	 * @return The profiled handler
+	 * @since 2.3
+	 */
+	public static Handler<RoutingContext> wrap(Handler<RoutingContext> handler, String route) {
+		if(handler instanceof ProfiledHandler)
+			return handler;
+
+		ProfiledHandler profiled = new ProfiledHandler(handler, route, _moduleFor(handler));
+		_handlers.add(profiled);
+
+		return profiled;
+	}
+
+	/**
+	 * Returns a report of the slowest executions of the current and previous window, and the handlers that took the most time in total
+	 * @return The report
+	 * @since 2.3
+	 */
+	public static JsonObject report() {
+		ArrayList<SlowExecution> slowest = new ArrayList<>();
+		synchronized(_slowest) {
+			_rotate(System.currentTimeMillis());
+			slowest.addAll(_slowest);
+			slowest.addAll(_previousSlowest);
+		}
+		slowest.sort(Comparator.comparingLong((SlowExecution e) -> e._nanos).reversed());
+
+		JsonArray slowJson = new JsonArray();
+		for(int i = 0; i < slowest.size() && i < _topN; i++) {
+			SlowExecution e = slowest.get(i);
+			slowJson.add(_describe(e._handler)
+					.put("millis", e._nanos/1_000_000.0)
+					.put("time", e._time)
+					.put("method", e._method)
+					.put("uri", e._uri));
+		}
+
+		ArrayList<ProfiledHandler> handlers = new ArrayList<>(_handlers);
+		handlers.sort(Comparator.comparingLong((ProfiledHandler h) -> h._nanos.sum()).reversed());
+
+		JsonArray handlersJson = new JsonArray();
+		for(int i = 0; i < handlers.size() && i < _topN; i++) {
+			ProfiledHandler h = handlers.get(i);
+			long calls = h._calls.sum();
+			long nanos = h._nanos.sum();
+
+			handlersJson.add(_describe(h)
+					.put("calls", calls)
+					.put("totalMillis", nanos/1_000_000.0)
+					.put("averageMicros", calls == 0 ? 0 : nanos/calls/1000.0)
+					.put("maxMillis", h._max.get()/1_000_000.0)
+					.put("slowCalls", h._slow.sum()));
+		}
+
+		return new JsonObject()
+				.put("enabled", _enabled)
+				.put("slowThreshold", _slowThreshold/1_000_000)
+				.put("window", _window)
+				.put("slowest", slowJson)
+				.put("handlers", handlersJson);
+	}
+
+	/**
+	 * Returns a handler that responds with the profiler's report, or passes to the next handler if the profiler is disabled or the request isn't allowed to view it.
+	 * Requests are allowed if their connection's address is in server.profiler.allowedIps (X-Forwarded-For is not trusted), and they're for the domain in server.profiler.domain if one is set.
+	 * @return The handler
+	 * @since 2.3
+	 */
+	public static Handler<RoutingContext> handler() {
+		return r -> {
+			if(_enabled && _access.allowed(r)) {
+				r.response()
+						.putHeader("content-type", "application/json")
+						.putHeader("cache-control", "no-store")
+						.end(report().encodePrettily());
+			} else {
+				r.next();
+			}
+		};
+	}
+
+	/**
+	 * Clears all recorded executions and handler totals
+	 * @since 2.3
+	 */
+	public static void reset() {
+		synchronized(_slowest) {
+			_slowest.clear();
+			_previousSlowest.clear();
+			_windowStart = System.currentTimeMillis();
+		}
+		for(ProfiledHandler h : _handlers) {
+			h._calls.reset();
+			h._nanos.reset();
+			h._slow.reset();
+			h._max.set(0);
+		}
+	}
+
+	// Describes a handler as JSON
+	private static JsonObject _describe(ProfiledHandler h) {
+		return new JsonObject()
+				.put("handler", h._name)
+				.put("route", h._route)
+				.put("module", h._module);
+	}
+
+	// Finds the name of the module a handler belongs to
+	private static String _moduleFor(Handler<RoutingContext> handler) {
+		TwineModule current = ModuleManager.current();
+		if(current != null)
+			return current.name();
+
+		String cls = handler.getClass().getName();
+		if(cls.startsWith("net.termer.twine.") || cls.startsWith("io.vertx."))
+			return "twine";
+
+		for(TwineModule module : ModuleManager.modules()) {
+			Package pkg = module.getClass().getPackage();
+			if(pkg != null && cls.startsWith(pkg.getName()+'.'))
+				return module.name();
+		}
+
+		return null;
+	}
+
+	// Records a slow execution
+	private static void _recordSlow(ProfiledHandler handler, RoutingContext r, long nanos) {
+		long now = System.currentTimeMillis();
+
+		synchronized(_slowest) {
+			_rotate(now);
+
+			// Insert in order, dropping the fastest execution if there are too many
+			int index = 0;
+			while(index < _slowest.size() && _slowest.get(index)._nanos >= nanos)
+				index++;
+			if(index < _topN) {
+				_slowest.add(index, new SlowExecution(handler, nanos, now, r.request().method().name(), r.request().uri()));
+				while(_slowest.size() > _topN)
+					_slowest.remove(_slowest.size()-1);
+			}
+		}
+
+		// Log at most once per second, to avoid flooding the log when something is consistently slow
+		long last = _lastWarning.get();
+		if(_logSlow && now-last >= 1000 && _lastWarning.compareAndSet(last, now))
+			logger().warn("Handler "+handler._name+" on route "+handler._route+(handler._module == null ? "" : " (module \""+handler._module+"\")")+" blocked the event loop for "+(nanos/1_000_000)+"ms");
+	}
+
+	// Starts a new window if the current one is over
+	private static void _rotate(long now) {
+		if(now-_windowStart >= _window) {
+			_previousSlowest.clear();
+
+			// If more than one window passed, the previous window was empty
+			if(now-_windowStart < _window*2)
+				_previousSlowest.addAll(_slowest);
+
+			_slowest.clear();
+			_windowStart = now;
+		}
+	}
+
+	// Describes the route a handler is being registered on
+	private static String _describeRoute(Route route) {
+		StringBuilder sb = new StringBuilder();
+
+		if(route.methods() == null || route.methods().isEmpty())
+			sb.append('*');
+		else
+			sb.append(route.methods().toString().replace(" ", "").replace("[", "").replace("]", ""));
+		sb.append(' ');
+
+		if(route.getPath() != null)
+			sb.append(route.getPath());
+		else if(route.isRegexPath())
+			sb.append("(regex)");
+		else
+			sb.append('/');
+
+		return sb.toString();
+	}
+
+	// A handler that is timed every time it runs
+	private static class ProfiledHandler implements Handler<RoutingContext> {
+		private final Handler<RoutingContext> _handler;
+		private final String _name;
+		private final String _route;
+		private final String _module;
+		private final LongAdder _calls = new LongAdder();
+		private final LongAdder _nanos = new LongAdder();
+		private final LongAdder _slow = new LongAdder();
+		private final AtomicLong _max = new AtomicLong(0);
+
+		private ProfiledHandler(Handler<RoutingContext> handler, String route, String module) {
+			_handler = handler;
+			_name = Metrics.classLabel(handler);
+			_route = route;
+			_module = module;
+		}
+
+		public void handle(RoutingContext r) {
+			if(!_enabled) {
+				_handler.handle(r);
+				return;
+			}
+
+			long[] nested = _nested.get();
+			long outerNested = nested[0];
+			nested[0] = 0;
+
+			long start = System.nanoTime();
+			try {
+				_handler.handle(r);
+			} finally {
+				long total = System.nanoTime()-start;
+				long nanos = total-nested[0];
+				nested[0] = outerNested+total;
+
+				_calls.increment();
+				_nanos.add(nanos);
+
+				long max;
+				while(nanos > (max = _max.get()) && !_max.compareAndSet(max, nanos));
+
+				if(nanos >= _slowThreshold) {
+					_slow.increment();
+					_recordSlow(this, r, nanos);
+				}
+			}
+		}
+	}
+
+	// A single slow handler execution
+	private static class SlowExecution {
+		private final ProfiledHandler _handler;
+		private final long _nanos;
+		private final long _time;
+		private final String _method;
+		private final String _uri;
+
+		private SlowExecution(ProfiledHandler handler, long nanos, long time, String method, String uri) {
+			_handler = handler;
+			_nanos = nanos;
+			_time = time;
+			_method = method;
+			_uri = uri;
+		}
+	}
+
+	// Wraps handlers passed to a Router or Route, and keeps returned Routers and Routes profiled
+	private static class ProfilingProxy implements InvocationHandler {
+		private final Object _target;
+		private final Router _router;
+
+		private ProfilingProxy(Object target, Router router) {
+			_target = target;
+			_router = router;
+		}
+
+		@SuppressWarnings("unchecked")
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+
+			if(args != null) {
+				for(int i = 0; i < args.length; i++) {
+					Object arg = args[i];
+
+					if(arg instanceof Router && Proxy.isProxyClass(arg.getClass()) && Proxy.getInvocationHandler(arg) instanceof ProfilingProxy) {
+						// Routers are passed to Vert.x, which needs the real Router
+						args[i] = ((ProfilingProxy) Proxy.getInvocationHandler(arg))._router;
+					} else if(arg instanceof Handler && (name.equals("handler") || name.equals("failureHandler"))) {
+						args[i] = wrap((Handler<RoutingContext>) arg, _describeRoute((Route) _target));
+					} else if(arg instanceof Handler && name.equals("errorHandler")) {
+						args[i] = wrap((Handler<RoutingContext>) arg, "error "+args[0]);
+					}
+				}
+			}
+
+			Object res;
+			try {
+				res = method.invoke(_target, args);
+			} catch(InvocationTargetException e) {
+				throw e.getCause();
+			}
+
+			if(res == _target)
+				return proxy;
+			else if(res instanceof Route)
+				return Proxy.newProxyInstance(
+						Route.class.getClassLoader(),
+						new Class<?>[] { Route.class },
+						new ProfilingProxy(res, _router)
+				);
+			else
+				return res;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package net.termer.twine.metrics;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram with fixed bucket bounds, backed by LongAdders so observations never contend with each other
+ * @author termer
+ * @since 2.3
+ */
+public class Histogram extends LabeledMeter<Histogram.Child> {
+	/**
+	 * Default bucket bounds for durations in seconds, from 0.5 milliseconds to 10 seconds
+	 * @since 2.3
+	 */
+	public static final double[] DEFAULT_SECONDS_BUCKETS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+	private final double[] _bounds;
+	private final String[] _boundStrs;
+
+	/**
+	 * Creates a new histogram.
+	 * Histograms should be registered with Metrics.register(...) to be exported.
+	 * @param name The histogram's name
+	 * @param help The histogram's description
+	 * @param bounds The upper bounds of the histogram's buckets, in ascending order (an infinite bucket is added automatically)
+	 * @param labelNames The names of the histogram's labels
+	 * @since 2.3
+	 */
+	public Histogram(String name, String help, double[] bounds, String... labelNames) {
+		super(name, help, labelNames);
+		_bounds = bounds.clone();
+		_boundStrs = new String[bounds.length];
+		for(int i = 0; i < bounds.length; i++)
+			_boundStrs[i] = Double.toString(bounds[i]);
+	}
+
+	protected Child newChild() {
+		return new Child(_bounds);
+	}
+
+	/**
+	 * Records a value (only for histograms without labels)
+	 * @param value The value
+	 * @since 2.3
+	 */
+	public void observe(double value) {
+		noLabels().observe(value);
+	}
+	/**
+	 * Records a duration in seconds (only for histograms without labels)
+	 * @param nanos The duration in nanoseconds
+	 * @since 2.3
+	 */
+	public void observeNanos(long nanos) {
+		noLabels().observeNanos(nanos);
+	}
+
+	public String type() {
+		return "histogram";
+	}
+
+	protected void writeChild(StringBuilder out, String labels, Child child) {
+		String sep = labels.isEmpty() ? "" : ",";
+		LongAdder[] buckets = child._buckets;
+
+		long cumulative = 0;
+		for(int i = 0; i <= _bounds.length; i++) {
+			cumulative += buckets[i].sum();
+			out.append(name()).append("_bucket{").append(labels).append(sep)
+					.append("le=\"").append(i < _bounds.length ? _boundStrs[i] : "+Inf").append("\"} ")
+					.append(cumulative).append('\n');
+		}
+
+		String braces = labels.isEmpty() ? "" : '{'+labels+'}';
+		out.append(name()).append("_sum").append(braces).append(' ').append(child._sum.sum()).append('\n');
+		out.append(name()).append("_count").append(braces).append(' ').append(child._count.sum()).append('\n');
+	}
+
+	/**
+	 * A histogram for a single combination of label values
+	 * @since 2.3
+	 */
+	public static class Child {
+		private final double[] _bounds;
+		private final LongAdder[] _buckets;
+		private final DoubleAdder _sum = new DoubleAdder();
+		private final LongAdder _count = new LongAdder();
+
+		private Child(double[] bounds) {
+			_bounds = bounds;
+			_buckets = new LongAdder[bounds.length+1];
+			for(int i = 0; i < _buckets.length; i++)
+				_buckets[i] = new LongAdder();
+		}
+
+		/**
+		 * Records a value
+		 * @param value The value
+		 * @since 2.3
+		 */
+		public void observe(double value) {
+			int i = 0;
+			while(i < _bounds.length && value > _bounds[i])
+				i++;
+
+			_buckets[i].increment();
+			_sum.add(value);
+			_count.increment();
+		}
+		/**
+		 * Records a duration in seconds
+		 * @param nanos The duration in nanoseconds
+		 * @since 2.3
+		 */
+		public void observeNanos(long nanos) {
+			observe(nanos/1e9);
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package net.termer.twine.metrics;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Base class for meters that hold a separate child for every combination of label values.
+ * Children are created on first use and looked up without locking afterwards.
+ * @param <C> The child type
+ * @author termer
+ * @since 2.3
+ */
+public abstract class LabeledMeter<C> implements Meter {
+	private final String _name;
+	private final String _help;
+	private final String[] _labelNames;
+	private final ConcurrentHashMap<LabelValues, C> _children = new ConcurrentHashMap<>();
+	private volatile C _noLabels = null;
+
+	/**
+	 * Creates a new labeled meter
+	 * @param name The meter's name
+	 * @param help The meter's description
+	 * @param labelNames The names of the meter's labels
+	 * @since 2.3
+	 */
+	protected LabeledMeter(String name, String help, String... labelNames) {
+		_name = name;
+		_help = help;
+		_labelNames = labelNames.clone();
+	}
+
+	/**
+	 * Creates a new child
+	 * @return The new child
+	 * @since 2.3
+	 */
+	protected abstract C newChild();
+
+	/**
+	 * Writes a child's samples
+	 * @param out The builder to write to
+	 * @param labels The child's labels, already formatted (e.g. domain="default"), or an empty string if there are none
+	 * @param child The child
+	 * @since 2.3
+	 */
+	protected abstract void writeChild(StringBuilder out, String labels, C child);
+
+	/**
+	 * Returns the child for the specified label values, creating it if it doesn't exist
+	 * @param values The label values, in the same order as the label names
+	 * @return The child
+	 * @since 2.3
+	 */
+	public C labels(String... values) {
+		if(values.length != _labelNames.length)
+			throw new IllegalArgumentException("Meter "+_name+" has "+_labelNames.length+" labels, but "+values.length+" values were provided");
+		if(values.length == 0)
+			return noLabels();
+
+		LabelValues key = new LabelValues(values);
+		C child = _children.get(key);
+		if(child == null)
+			child = _children.computeIfAbsent(new LabelValues(values.clone()), k -> newChild());
+
+		return child;
+	}
+
+	/**
+	 * Returns the child for meters without labels
+	 * @return The child
+	 * @since 2.3
+	 */
+	protected C noLabels() {
+		if(_labelNames.length > 0)
+			throw new IllegalStateException("Meter "+_name+" has labels, use labels(...) instead");
+
+		C child = _noLabels;
+		if(child == null) {
+			synchronized(this) {
+				if(_noLabels == null)
+					_noLabels = newChild();
+				child = _noLabels;
+			}
+		}
+
+		return child;
+	}
+
+	public String name() {
+		return _name;
+	}
+	public String help() {
+		return _help;
+	}
+
+	public void writeSamples(StringBuilder out) {
+		if(_labelNames.length == 0) {
+			writeChild(out, "", noLabels());
+			return;
+		}
+
+		StringBuilder labels = new StringBuilder();
+		for(Map.Entry<LabelValues, C> e : _children.entrySet()) {
+			labels.setLength(0);
+			String[] values = e.getKey()._values;
+
+			for(int i = 0; i < values.length; i++) {
+				if(i > 0)
+					labels.append(',');
+				labels.append(_labelNames[i]).append("=\"");
+				Metrics.escapeLabelValue(labels, values[i]);
+				labels.append('"');
+			}
+
+			writeChild(out, labels.toString(), e.getValue());
+		}
+	}
+
+	// Label values usable as a map key
+	private static class LabelValues {
+		private final String[] _values;
+		private final int _hash;
+
+		private LabelValues(String[] values) {
+			_values = values;
+			_hash = Arrays.hashCode(values);
+		}
+
+		public int hashCode() {
+			return _hash;
+		}
+		public boolean equals(Object obj) {
+			return obj instanceof LabelValues && Arrays.equals(_values, ((LabelValues) obj)._values);
+		}
+	}
+}
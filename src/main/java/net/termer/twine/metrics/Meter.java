@@ -0,0 +1,36 @@
+package net.termer.twine.metrics;
+
+/**
+ * Interface for metrics that can be registered in Metrics and written in the Prometheus text format
+ * @author termer
+ * @since 2.3
+ */
+public interface Meter {
+	/**
+	 * Returns the name of this meter, e.g. "twine_http_requests_total"
+	 * @return The meter's name
+	 * @since 2.3
+	 */
+	String name();
+
+	/**
+	 * Returns the description of this meter
+	 * @return The meter's description
+	 * @since 2.3
+	 */
+	String help();
+
+	/**
+	 * Returns the Prometheus type of this meter, e.g. "counter"
+	 * @return The meter's type
+	 * @since 2.3
+	 */
+	String type();
+
+	/**
+	 * Writes this meter's samples in the Prometheus text format, excluding the HELP and TYPE lines
+	 * @param out The builder to write to
+	 * @since 2.3
+	 */
+	void writeSamples(StringBuilder out);
+}
@@ -0,0 +1,234 @@
+package net.termer.twine.metrics;
+
+import io.vertx.core.Handler;
+import io.vertx.ext.web.RoutingContext;
+import net.termer.twine.ServerManager;
+import net.termer.twine.documents.Documents;
+import net.termer.twine.utils.HotFiles;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+
+import static net.termer.twine.Twine.config;
+
+/**
+ * Registry of all meters, and Twine's built-in meters.
+ * Modules can register their own meters with register(...), and all registered meters are exported on the Prometheus endpoint.
+ * @author termer
+ * @since 2.3
+ */
+public class Metrics {
+	// Registered meters, key: name
+	private static final LinkedHashMap<String, Meter> _meters = new LinkedHashMap<>();
+	private static volatile boolean _enabled = false;
+	// Who is allowed to view the metrics endpoint
+	private static final EndpointAccess _access = new EndpointAccess("server.metrics");
+
+	/**
+	 * Requests handled, by domain and status class (e.g. "2xx")
+	 * @since 2.3
+	 */
+	public static final Counter REQUESTS = register(new Counter("twine_http_requests_total", "HTTP requests handled", "domain", "status"));
+	/**
+	 * Response bytes sent, by domain
+	 * @since 2.3
+	 */
+	public static final Counter RESPONSE_BYTES = register(new Counter("twine_http_response_bytes_total", "HTTP response body bytes sent", "domain"));
+	/**
+	 * Time taken to handle requests, from the first handler until the response was finished, by domain
+	 * @since 2.3
+	 */
+	public static final Histogram REQUEST_DURATION = register(new Histogram("twine_http_request_duration_seconds", "Time taken to handle HTTP requests", Histogram.DEFAULT_SECONDS_BUCKETS, "domain"));
+	/**
+	 * Time taken by each document processor, from when it was called until it called next(), end() or fail()
+	 * @since 2.3
+	 */
+	public static final Histogram DOCUMENT_PROCESSING = register(new Histogram("twine_document_processing_seconds", "Time taken by document processors", Histogram.DEFAULT_SECONDS_BUCKETS, "processor"));
+	/**
+	 * Time taken to resolve request paths to files on disk, excluding paths served from the resolution cache
+	 * @since 2.3
+	 */
+	public static final Histogram PATH_RESOLUTION = register(new Histogram("twine_path_resolution_seconds", "Time taken to resolve request paths to files when not cached", Histogram.DEFAULT_SECONDS_BUCKETS));
+	/**
+	 * Request paths resolved from the resolution cache
+	 * @since 2.3
+	 */
+	public static final Counter PATH_RESOLUTION_CACHE_HITS = register(new Counter("twine_path_resolution_cache_hits_total", "Request paths resolved from the resolution cache"));
+
+	static {
+		register(new Gauge("twine_access_log_queue_depth", "Access log lines waiting to be written", () -> ServerManager.accessLog().queueDepth()));
+		register(new Gauge("twine_access_log_written_total", "Access log lines written", "counter", () -> ServerManager.accessLog().written()));
+		register(new Gauge("twine_access_log_dropped_total", "Access log lines dropped because the queue was full", "counter", () -> ServerManager.accessLog().dropped()));
+		register(new Gauge("twine_hot_files_bytes", "Bytes held by the in-memory static file tier", HotFiles::bytes));
+		register(new Gauge("twine_document_cache_bytes", "Approximate bytes held by the processed document cache", () -> Documents.cache().bytes()));
+	}
+
+	/**
+	 * Returns whether metrics are being recorded
+	 * @return Whether metrics are enabled
+	 * @since 2.3
+	 */
+	public static boolean enabled() {
+		return _enabled;
+	}
+	/**
+	 * Sets whether metrics are being recorded.
+	 * This is set from server.metrics.enable when configs are loaded.
+	 * @param enabled Whether metrics are enabled
+	 * @since 2.3
+	 */
+	public static void enabled(boolean enabled) {
+		_enabled = enabled;
+	}
+
+	/**
+	 * Applies the current metrics config
+	 * @since 2.3
+	 */
+	public static void configure() {
+		_enabled = (boolean) config().getNodeOrDefault("server.metrics.enable", false);
+		_access.configure();
+	}
+
+	/**
+	 * Registers a meter so it is exported.
+	 * Meters should be registered once and kept, not registered for every use.
+	 * @param meter The meter to register
+	 * @param <T> The meter's type
+	 * @return The meter, to be used fluently
+	 * @throws IllegalArgumentException If a different meter with the same name is already registered
+	 * @since 2.3
+	 */
+	public static <T extends Meter> T register(T meter) {
+		synchronized(_meters) {
+			Meter existing = _meters.get(meter.name());
+			if(existing != null && existing != meter)
+				throw new IllegalArgumentException("A meter named "+meter.name()+" is already registered");
+
+			_meters.put(meter.name(), meter);
+		}
+
+		return meter;
+	}
+
+	/**
+	 * Unregisters a meter so it's no longer exported
+	 * @param name The name of the meter to unregister
+	 * @since 2.3
+	 */
+	public static void unregister(String name) {
+		synchronized(_meters) {
+			_meters.remove(name);
+		}
+	}
+
+	/**
+	 * Returns all registered meters
+	 * @return All registered meters
+	 * @since 2.3
+	 */
+	public static Meter[] meters() {
+		synchronized(_meters) {
+			Collection<Meter> meters = _meters.values();
+			return meters.toArray(new Meter[0]);
+		}
+	}
+
+	/**
+	 * Writes all registered meters in the Prometheus text format
+	 * @return The Prometheus text format output
+	 * @since 2.3
+	 */
+	public static String scrape() {
+		StringBuilder out = new StringBuilder(4096);
+
+		for(Meter meter : meters()) {
+			out.append("# HELP ").append(meter.name()).append(' ');
+			for(int i = 0; i < meter.help().length(); i++) {
+				char c = meter.help().charAt(i);
+				if(c == '\\')
+					out.append("\\\\");
+				else if(c == '\n')
+					out.append("\\n");
+				else
+					out.append(c);
+			}
+			out.append('\n');
+			out.append("# TYPE ").append(meter.name()).append(' ').append(meter.type()).append('\n');
+			meter.writeSamples(out);
+		}
+
+		return out.toString();
+	}
+
+	/**
+	 * Returns a handler that responds with all registered meters in the Prometheus text format, or passes to the next handler if metrics are disabled or the request isn't allowed to view them.
+	 * Requests are allowed if their connection's address is in server.metrics.allowedIps (X-Forwarded-For is not trusted), and they're for the domain in server.metrics.domain if one is set.
+	 * @return The handler
+	 * @since 2.3
+	 */
+	public static Handler<RoutingContext> handler() {
+		return r -> {
+			if(_enabled && _access.allowed(r)) {
+				r.response()
+						.putHeader("content-type", "text/plain; version=0.0.4; charset=utf-8")
+						.putHeader("cache-control", "no-store")
+						.end(scrape());
+			} else {
+				r.next();
+			}
+		};
+	}
+
+	/**
+	 * Returns the status class label for a status code, e.g. "2xx" for 200
+	 * @param status The status code
+	 * @return The status class
+	 * @since 2.3
+	 */
+	public static String statusClass(int status) {
+		switch(status/100) {
+			case 1: return "1xx";
+			case 2: return "2xx";
+			case 3: return "3xx";
+			case 4: return "4xx";
+			case 5: return "5xx";
+			default: return "other";
+		}
+	}
+
+	/**
+	 * Returns the label to use for an object (such as a document processor), based on its class name.
+	 * Lambdas are labeled with the class that defined them, followed by "$$Lambda".
+	 * @param obj The object
+	 * @return The object's label
+	 * @since 2.3
+	 */
+	public static String classLabel(Object obj) {
+		String name = obj.getClass().getName();
+		int lambda = name.indexOf("$$Lambda");
+
+		return lambda > -1 ? name.substring(0, lambda+8) : name;
+	}
+
+	/**
+	 * Escapes a label value for the Prometheus text format
+	 * @param out The builder to write the escaped value to
+	 * @param value The value to escape
+	 * @since 2.3
+	 */
+	public static void escapeLabelValue(StringBuilder out, String value) {
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+
+			if(c == '\\')
+				out.append("\\\\");
+			else if(c == '"')
+				out.append("\\\"");
+			else if(c == '\n')
+				out.append("\\n");
+			else
+				out.append(c);
+		}
+	}
+}
@@ -27,6 +27,7 @@ import static net.termer.twine.Twine.config;
 public class ModuleManager {
 	private static final ArrayList<TwineModule> _modules = new ArrayList<>();
 	private static final HashMap<Priority, CopyOnWriteArrayList<TwineModule>> _priorities = new HashMap<>();
+	private static volatile TwineModule _current = null;
 	
 	/**
 	 * Loads all modules and dependencies
@@ -179,6 +180,16 @@ public class ModuleManager {
 		return _priorities.get(priority).toArray(new TwineModule[0]);
 	}
 
+	/**
+	 * Returns the module that is currently being pre-initialized or initialized, or null if none is.
+	 * Used to attribute things modules register (such as route handlers) to them.
+	 * @return The module currently being pre-initialized or initialized
+	 * @since 2.3
+	 */
+	public static TwineModule current() {
+		return _current;
+	}
+
 	// Shuts down a module
 	private static void sdMod(TwineModule m) {
 		try {
@@ -198,6 +209,7 @@ public class ModuleManager {
 	// Initializes the provided TwineModule
 	private static void init(TwineModule m, Priority p) {
 		Twine.logger().info("Initializing module \""+m.name()+"\"...");
+		_current = m;
 		try {
 			m.initialize();
 		} catch(AbstractMethodError e) {
@@ -212,11 +224,14 @@ public class ModuleManager {
 			Twine.logger().info("The module will be removed from the modules stack, but can still be referenced by other modules.");
 			_modules.remove(m);
 			_priorities.get(p).remove(m);
+		} finally {
+			_current = null;
 		}
 	}
 	// Pre-Initializes the provided TwineModule
 	private static void preinit(TwineModule m, Priority p) {
 		Twine.logger().info("Pre-initializing module \""+m.name()+"\"...");
+		_current = m;
 		try {
 			m.preinitialize();
 		} catch(AbstractMethodError e) {
@@ -230,6 +245,8 @@ public class ModuleManager {
 			Twine.logger().info("The module will be removed from the modules stack, but can still be referenced by other modules.");
 			_modules.remove(m);
 			_priorities.get(p).remove(m);
+		} finally {
+			_current = null;
 		}
 	}
 	
@@ -0,0 +1,376 @@
+package net.termer.twine.utils;
+
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.ext.web.RoutingContext;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Formats access log lines for completed requests.
+ * Lines are built in a reusable per-thread StringBuilder, and timestamps are only formatted once per second.
+ * @author termer
+ * @since 2.3
+ */
+public class AccessLogFormatter {
+	/**
+	 * Access log line formats
+	 * @since 2.3
+	 */
+	public enum Format {
+		/**
+		 * Twine's original format followed by the status and latency, e.g. "Sat Oct 16 12:00:00 UTC 2021 GET /index.html [default] (127.0.0.1 curl/7.68.0) 200 1.234ms"
+		 * @since 2.3
+		 */
+		TWINE,
+		/**
+		 * Common Log Format, e.g. "127.0.0.1 - - [16/Oct/2021:12:00:00 +0000] "GET /index.html HTTP/1.1" 200 1234"
+		 * @since 2.3
+		 */
+		COMMON,
+		/**
+		 * Combined Log Format, which is Common Log Format followed by the quoted Referer and User-Agent headers
+		 * @since 2.3
+		 */
+		COMBINED,
+		/**
+		 * One JSON object per line, containing the selected fields
+		 * @since 2.3
+		 */
+		JSON
+	}
+
+	/**
+	 * Fields that can be included in JSON lines
+	 * @since 2.3
+	 */
+	public enum Field {
+		/**
+		 * The time the request completed, in ISO 8601 format (UTC)
+		 * @since 2.3
+		 */
+		TIME("time"),
+		/**
+		 * The request method
+		 * @since 2.3
+		 */
+		METHOD("method"),
+		/**
+		 * The request URI
+		 * @since 2.3
+		 */
+		URI("uri"),
+		/**
+		 * The HTTP version, e.g. "HTTP/1.1"
+		 * @since 2.3
+		 */
+		PROTOCOL("protocol"),
+		/**
+		 * The response status code
+		 * @since 2.3
+		 */
+		STATUS("status"),
+		/**
+		 * The amount of response body bytes sent
+		 * @since 2.3
+		 */
+		BYTES("bytes"),
+		/**
+		 * The time taken to handle the request, in milliseconds
+		 * @since 2.3
+		 */
+		LATENCY("latency"),
+		/**
+		 * The name of the domain the request was for
+		 * @since 2.3
+		 */
+		DOMAIN("domain"),
+		/**
+		 * The client's IP, resolved with RequestUtils.resolveIp()
+		 * @since 2.3
+		 */
+		IP("ip"),
+		/**
+		 * The User-Agent header
+		 * @since 2.3
+		 */
+		USER_AGENT("userAgent"),
+		/**
+		 * The Referer header
+		 * @since 2.3
+		 */
+		REFERER("referer");
+
+		private final String _key;
+
+		Field(String key) {
+			_key = key;
+		}
+
+		/**
+		 * Returns the key this field is written with in JSON lines
+		 * @return The field's JSON key
+		 * @since 2.3
+		 */
+		public String key() {
+			return _key;
+		}
+	}
+
+	// Builders reused by each thread
+	private static final ThreadLocal<StringBuilder> _builders = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+	private final Format _format;
+	private final Field[] _fields;
+	private final DateTimeFormatter _timeFormat;
+	private volatile CachedTime _time = new CachedTime(-1, "");
+
+	/**
+	 * Creates a new AccessLogFormatter
+	 * @param format The line format
+	 * @param fields The fields to include in JSON lines (ignored for other formats)
+	 * @since 2.3
+	 */
+	public AccessLogFormatter(Format format, Field[] fields) {
+		_format = format;
+		_fields = fields.clone();
+
+		switch(format) {
+			case COMMON:
+			case COMBINED:
+				_timeFormat = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+				break;
+			case JSON:
+				_timeFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US).withZone(ZoneOffset.UTC);
+				break;
+			default:
+				// Same as Date.toString()
+				_timeFormat = DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US).withZone(ZoneId.systemDefault());
+		}
+	}
+
+	/**
+	 * Returns this formatter's line format
+	 * @return The line format
+	 * @since 2.3
+	 */
+	public Format format() {
+		return _format;
+	}
+
+	/**
+	 * Formats a log line for a completed request
+	 * @param r The request's RoutingContext
+	 * @param domain The name of the domain the request was for
+	 * @param latency The time taken to handle the request (nanoseconds)
+	 * @return The formatted line, without a trailing newline
+	 * @since 2.3
+	 */
+	public String format(RoutingContext r, String domain, long latency) {
+		StringBuilder sb = _builders.get();
+		sb.setLength(0);
+		HttpServerRequest req = r.request();
+
+		switch(_format) {
+			case COMMON:
+			case COMBINED:
+				sb.append(RequestUtils.resolveIp(req)).append(" - - [").append(_now()).append("] \"")
+						.append(req.method().name()).append(' ')
+						.append(req.uri()).append(' ');
+				_appendProtocol(sb, req);
+				sb.append("\" ").append(r.response().getStatusCode()).append(' ');
+
+				long bytes = r.response().bytesWritten();
+				if(bytes > 0)
+					sb.append(bytes);
+				else
+					sb.append('-');
+
+				if(_format == Format.COMBINED) {
+					sb.append(" \"");
+					_appendQuoted(sb, req.headers().get("Referer"));
+					sb.append("\" \"");
+					_appendQuoted(sb, req.headers().get("User-Agent"));
+					sb.append('"');
+				}
+				break;
+			case JSON:
+				sb.append('{');
+				for(int i = 0; i < _fields.length; i++) {
+					if(i > 0)
+						sb.append(',');
+					sb.append('"').append(_fields[i].key()).append("\":");
+					_appendJsonField(sb, _fields[i], r, domain, latency);
+				}
+				sb.append('}');
+				break;
+			default:
+				sb.append(_now())
+						.append(' ').append(req.method().name())
+						.append(' ').append(req.uri())
+						.append(" [").append(domain)
+						.append("] (").append(RequestUtils.resolveIp(req))
+						.append(' ').append(req.headers().get("User-Agent"))
+						.append(") ").append(r.response().getStatusCode())
+						.append(' ');
+				_appendLatency(sb, latency);
+				sb.append("ms");
+		}
+
+		return sb.toString();
+	}
+
+	// Appends a latency in milliseconds with microsecond precision
+	private static void _appendLatency(StringBuilder sb, long latency) {
+		long micros = latency/1000;
+		long frac = micros%1000;
+		sb.append(micros/1000).append('.');
+		if(frac < 100)
+			sb.append('0');
+		if(frac < 10)
+			sb.append('0');
+		sb.append(frac);
+	}
+
+	// Returns the current time formatted, reformatting it at most once per second
+	private String _now() {
+		long second = System.currentTimeMillis()/1000;
+		CachedTime time = _time;
+
+		if(time._second != second) {
+			time = new CachedTime(second, _timeFormat.format(Instant.ofEpochSecond(second)));
+			_time = time;
+		}
+
+		return time._text;
+	}
+
+	// Writes the value of a field as JSON
+	private void _appendJsonField(StringBuilder sb, Field field, RoutingContext r, String domain, long latency) {
+		HttpServerRequest req = r.request();
+
+		switch(field) {
+			case TIME:
+				sb.append('"').append(_now()).append('"');
+				break;
+			case METHOD:
+				sb.append('"').append(req.method().name()).append('"');
+				break;
+			case URI:
+				_appendJsonString(sb, req.uri());
+				break;
+			case PROTOCOL:
+				sb.append('"');
+				_appendProtocol(sb, req);
+				sb.append('"');
+				break;
+			case STATUS:
+				sb.append(r.response().getStatusCode());
+				break;
+			case BYTES:
+				sb.append(r.response().bytesWritten());
+				break;
+			case LATENCY:
+				_appendLatency(sb, latency);
+				break;
+			case DOMAIN:
+				_appendJsonString(sb, domain);
+				break;
+			case IP:
+				_appendJsonString(sb, RequestUtils.resolveIp(req));
+				break;
+			case USER_AGENT:
+				_appendJsonString(sb, req.headers().get("User-Agent"));
+				break;
+			case REFERER:
+				_appendJsonString(sb, req.headers().get("Referer"));
+				break;
+		}
+	}
+
+	// Writes the request's HTTP version
+	private static void _appendProtocol(StringBuilder sb, HttpServerRequest req) {
+		switch(req.version()) {
+			case HTTP_1_0:
+				sb.append("HTTP/1.0");
+				break;
+			case HTTP_2:
+				sb.append("HTTP/2.0");
+				break;
+			default:
+				sb.append("HTTP/1.1");
+		}
+	}
+
+	// Writes a string for use inside double quotes in Common/Combined Log Format, or "-" if null
+	private static void _appendQuoted(StringBuilder sb, String str) {
+		if(str == null) {
+			sb.append('-');
+			return;
+		}
+
+		for(int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+
+			if(c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if(c < 0x20)
+				sb.append(' ');
+			else
+				sb.append(c);
+		}
+	}
+
+	// Writes a string as a JSON string, or null
+	private static void _appendJsonString(StringBuilder sb, String str) {
+		if(str == null) {
+			sb.append("null");
+			return;
+		}
+
+		sb.append('"');
+		for(int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+
+			switch(c) {
+				case '"':
+					sb.append("\\\"");
+					break;
+				case '\\':
+					sb.append("\\\\");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				case '\t':
+					sb.append("\\t");
+					break;
+				default:
+					if(c < 0x20) {
+						sb.append("\\u00");
+						sb.append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+					} else {
+						sb.append(c);
+					}
+			}
+		}
+		sb.append('"');
+	}
+
+	// A formatted timestamp for a single second
+	private static class CachedTime {
+		private final long _second;
+		private final String _text;
+
+		private CachedTime(long second, String text) {
+			_second = second;
+			_text = text;
+		}
+	}
+}
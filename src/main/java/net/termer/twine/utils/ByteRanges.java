@@ -0,0 +1,249 @@
+package net.termer.twine.utils;
+
+/**
+ * Parsed byte ranges from an HTTP Range header, resolved against the size of the resource being requested.
+ * Headers are parsed in a single pass without creating intermediate strings.
+ * @author termer
+ * @since 2.3
+ */
+public class ByteRanges {
+	private final long[] _starts;
+	private final long[] _ends;
+	private final int _count;
+	private final long _size;
+
+	// Stores values
+	private ByteRanges(long[] starts, long[] ends, int count, long size) {
+		_starts = starts;
+		_ends = ends;
+		_count = count;
+		_size = size;
+	}
+
+	/**
+	 * Parses a Range header.
+	 * Returns null if the header is malformed, uses a unit other than bytes, or has more than the maximum amount of ranges, in which case it should be ignored and the entire resource sent.
+	 * Ranges that start past the end of the resource are dropped. If none are left, the result is unsatisfiable.
+	 * Overlapping and adjacent ranges are merged, and sorted by position. If the ranges add up to more than the resource's size, null is returned, so the resource is sent once instead of parts of it many times.
+	 * @param header The Range header
+	 * @param size The size of the resource
+	 * @param maxRanges The maximum amount of ranges to accept, or 0 (or less) to ignore all Range headers
+	 * @return The parsed ranges, or null if the header should be ignored
+	 * @since 2.3
+	 */
+	public static ByteRanges parse(String header, long size, int maxRanges) {
+		if(maxRanges < 1)
+			return null;
+
+		int len = header.length();
+		int i = 0;
+
+		// Skip leading whitespace and check unit
+		while(i < len && header.charAt(i) == ' ')
+			i++;
+		if(!header.regionMatches(true, i, "bytes", 0, 5))
+			return null;
+		i += 5;
+		while(i < len && header.charAt(i) == ' ')
+			i++;
+		if(i >= len || header.charAt(i) != '=')
+			return null;
+		i++;
+
+		long[] starts = new long[Math.min(maxRanges, 4)];
+		long[] ends = new long[starts.length];
+		int count = 0;
+		int specs = 0;
+
+		while(i < len) {
+			// Skip whitespace and empty list elements
+			char c = header.charAt(i);
+			if(c == ' ' || c == ',') {
+				i++;
+				continue;
+			}
+
+			if(++specs > maxRanges)
+				return null;
+
+			// First position (absent for suffix ranges)
+			long first = -1;
+			if(c >= '0' && c <= '9') {
+				first = 0;
+				while(i < len && (c = header.charAt(i)) >= '0' && c <= '9') {
+					if(first > (Long.MAX_VALUE-9)/10)
+						return null;
+					first = first*10+(c-'0');
+					i++;
+				}
+			}
+
+			if(i >= len || header.charAt(i) != '-')
+				return null;
+			i++;
+
+			// Last position (absent for open-ended ranges)
+			long last = -1;
+			if(i < len && (c = header.charAt(i)) >= '0' && c <= '9') {
+				last = 0;
+				while(i < len && (c = header.charAt(i)) >= '0' && c <= '9') {
+					if(last > (Long.MAX_VALUE-9)/10)
+						return null;
+					last = last*10+(c-'0');
+					i++;
+				}
+			}
+
+			// Only whitespace or a comma can follow a range
+			while(i < len && header.charAt(i) == ' ')
+				i++;
+			if(i < len && header.charAt(i) != ',')
+				return null;
+
+			long start;
+			long end;
+			if(first < 0) {
+				// Suffix range, "-500" means the last 500 bytes
+				if(last < 0)
+					return null;
+				if(last == 0 || size == 0)
+					continue;
+				start = Math.max(0, size-last);
+				end = size-1;
+			} else {
+				if(last > -1 && last < first)
+					return null;
+				if(first >= size)
+					continue;
+				start = first;
+				end = last < 0 ? size-1 : Math.min(last, size-1);
+			}
+
+			if(count == starts.length) {
+				long[] newStarts = new long[Math.min(starts.length*2, maxRanges)];
+				long[] newEnds = new long[newStarts.length];
+				System.arraycopy(starts, 0, newStarts, 0, count);
+				System.arraycopy(ends, 0, newEnds, 0, count);
+				starts = newStarts;
+				ends = newEnds;
+			}
+			starts[count] = start;
+			ends[count] = end;
+			count++;
+		}
+
+		if(specs == 0)
+			return null;
+
+		if(count > 1) {
+			// Requesting more than the resource (such as the same range many times) gets the whole resource
+			long total = 0;
+			for(int j = 0; j < count; j++) {
+				total += ends[j]-starts[j]+1;
+				if(total > size)
+					return null;
+			}
+
+			count = _merge(starts, ends, count);
+		}
+
+		return new ByteRanges(starts, ends, count, size);
+	}
+
+	// Sorts ranges by start position and merges overlapping and adjacent ones in place, returning the new amount of ranges
+	private static int _merge(long[] starts, long[] ends, int count) {
+		// Insertion sort, since there are few ranges
+		for(int i = 1; i < count; i++) {
+			long start = starts[i];
+			long end = ends[i];
+			int j = i-1;
+			while(j >= 0 && starts[j] > start) {
+				starts[j+1] = starts[j];
+				ends[j+1] = ends[j];
+				j--;
+			}
+			starts[j+1] = start;
+			ends[j+1] = end;
+		}
+
+		int merged = 0;
+		for(int i = 1; i < count; i++) {
+			if(starts[i] <= ends[merged]+1) {
+				ends[merged] = Math.max(ends[merged], ends[i]);
+			} else {
+				merged++;
+				starts[merged] = starts[i];
+				ends[merged] = ends[i];
+			}
+		}
+
+		return merged+1;
+	}
+
+	/**
+	 * Returns whether none of the requested ranges can be satisfied, meaning a 416 response should be sent
+	 * @return Whether the ranges are unsatisfiable
+	 * @since 2.3
+	 */
+	public boolean unsatisfiable() {
+		return _count == 0;
+	}
+
+	/**
+	 * Returns the amount of satisfiable ranges
+	 * @return The amount of ranges
+	 * @since 2.3
+	 */
+	public int count() {
+		return _count;
+	}
+
+	/**
+	 * Returns the first byte position of the range at the specified index
+	 * @param index The range index
+	 * @return The first byte position
+	 * @since 2.3
+	 */
+	public long start(int index) {
+		return _starts[index];
+	}
+
+	/**
+	 * Returns the last byte position (inclusive) of the range at the specified index
+	 * @param index The range index
+	 * @return The last byte position
+	 * @since 2.3
+	 */
+	public long end(int index) {
+		return _ends[index];
+	}
+
+	/**
+	 * Returns the length of the range at the specified index
+	 * @param index The range index
+	 * @return The range length
+	 * @since 2.3
+	 */
+	public long length(int index) {
+		return _ends[index]-_starts[index]+1;
+	}
+
+	/**
+	 * Returns the Content-Range header value for the range at the specified index
+	 * @param index The range index
+	 * @return The Content-Range header value
+	 * @since 2.3
+	 */
+	public String contentRange(int index) {
+		return "bytes "+_starts[index]+'-'+_ends[index]+'/'+_size;
+	}
+
+	/**
+	 * Returns the size of the resource these ranges are for
+	 * @return The resource size
+	 * @since 2.3
+	 */
+	public long size() {
+		return _size;
+	}
+}
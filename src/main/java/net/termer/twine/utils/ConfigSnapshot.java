@@ -0,0 +1,56 @@
+package net.termer.twine.utils;
+
+import net.termer.twine.domains.Domains;
+
+import java.util.HashMap;
+
+/**
+ * A loaded server configuration and the domains parsed from it.
+ * Twine builds a new snapshot for every config reload and publishes it all at once, so a snapshot's config and domains always belong together.
+ * Twine doesn't modify a snapshot after publishing it, but its config is the same YamlConfig returned by Twine.config(), so values set with tempSet() or tempSetNode() are visible to everything reading the snapshot until the next reload replaces it.
+ * Code that reads several config values and needs them to be consistent with each other should get a snapshot once with Twine.snapshot() and read everything from it.
+ * @author termer
+ * @since 2.3
+ */
+public class ConfigSnapshot {
+	private final YamlConfig _config;
+	private final Domains _domains;
+
+	/**
+	 * Creates a new ConfigSnapshot
+	 * @param config The loaded server configuration
+	 * @param domains The domains parsed from the configuration
+	 * @since 2.3
+	 */
+	public ConfigSnapshot(YamlConfig config, Domains domains) {
+		_config = config;
+		_domains = domains;
+	}
+
+	/**
+	 * Creates a snapshot with an empty loaded config and no domains, used until the server's configuration is loaded for the first time
+	 * @return The empty snapshot
+	 * @since 2.3
+	 */
+	public static ConfigSnapshot empty() {
+		return new ConfigSnapshot(new YamlConfig("twine.yml", new HashMap<>()), null);
+	}
+
+	/**
+	 * Returns the server configuration in this snapshot
+	 * @return The server configuration
+	 * @since 2.3
+	 */
+	public YamlConfig config() {
+		return _config;
+	}
+
+	/**
+	 * Returns the domains in this snapshot
+	 * @return The domains
+	 * @since 2.3
+	 */
+	public Domains domains() {
+		return _domains;
+	}
+}
\ No newline at end of file
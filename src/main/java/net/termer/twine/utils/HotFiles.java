@@ -0,0 +1,312 @@
+package net.termer.twine.utils;
+
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.FileProps;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static net.termer.twine.ServerManager.vertx;
+import static net.termer.twine.Twine.config;
+import static net.termer.twine.Twine.logger;
+
+/**
+ * In-memory tier for small, frequently requested static files.
+ * Files are kept in heap buffers along with their pre-compressed variants and precomputed headers, so they can be sent without touching the filesystem.
+ * Entries are validated against the file on disk every revalidation interval, and dropped by the file watcher when files change.
+ * Buffers are shared between requests, so each response is sent its own slice of them.
+ * @author termer
+ * @since 2.3
+ */
+public class HotFiles {
+	// Loaded files, key: absolute path
+	private static final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<>(16, 0.75f, true);
+	// Files that are currently being loaded
+	private static final Set<String> _loading = ConcurrentHashMap.newKeySet();
+	private static long _bytes = 0;
+
+	/**
+	 * Returns whether the hot file tier is enabled
+	 * @return Whether the hot file tier is enabled
+	 * @since 2.3
+	 */
+	public static boolean enabled() {
+		return (boolean) config().getNodeOrDefault("server.hotFiles.enable", true);
+	}
+
+	/**
+	 * Returns the loaded entry for a file, or null if it's not loaded or is due for revalidation
+	 * @param path The absolute path of the file
+	 * @return The file's entry, or null if none is usable
+	 * @since 2.3
+	 */
+	public static Entry get(String path) {
+		Entry entry;
+		synchronized(_entries) {
+			entry = _entries.get(path);
+		}
+
+		if(entry == null || System.currentTimeMillis()-entry._checked > _revalidateInterval())
+			return null;
+		else
+			return entry;
+	}
+
+	/**
+	 * Offers a file that was just sent from disk to the tier.
+	 * If an entry for the file exists and is still current, it's marked as validated. Otherwise, if the file is small enough, it's loaded in the background.
+	 * @param path The absolute path of the file
+	 * @param props The file's current properties
+	 * @since 2.3
+	 */
+	public static void offer(String path, FileProps props) {
+		Entry entry;
+		synchronized(_entries) {
+			entry = _entries.get(path);
+		}
+
+		if(entry != null && entry._lastModified == props.lastModifiedTime() && entry._size == props.size()) {
+			entry._checked = System.currentTimeMillis();
+			return;
+		}
+
+		if(props.isRegularFile() && props.size() <= (int) config().getNodeOrDefault("server.hotFiles.maxFileSize", 65536) && _loading.add(path))
+			_load(path, props).onComplete(res -> {
+				_loading.remove(path);
+
+				if(res.failed()) {
+					logger().error("Failed to load hot file "+path+":");
+					res.cause().printStackTrace();
+				}
+			});
+	}
+
+	/**
+	 * Drops entries for all files whose paths start with the specified prefix
+	 * @param prefix The path prefix
+	 * @since 2.3
+	 */
+	public static void forget(String prefix) {
+		synchronized(_entries) {
+			Iterator<Map.Entry<String, Entry>> it = _entries.entrySet().iterator();
+			while(it.hasNext()) {
+				Map.Entry<String, Entry> e = it.next();
+				if(e.getKey().startsWith(prefix)) {
+					_bytes -= e.getValue()._bytes;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops all entries
+	 * @since 2.3
+	 */
+	public static void clear() {
+		synchronized(_entries) {
+			_entries.clear();
+			_bytes = 0;
+		}
+	}
+
+	/**
+	 * Returns the total amount of bytes held by loaded files and their variants
+	 * @return The total amount of bytes held
+	 * @since 2.3
+	 */
+	public static long bytes() {
+		synchronized(_entries) {
+			return _bytes;
+		}
+	}
+
+	// Returns the configured revalidation interval
+	private static long _revalidateInterval() {
+		return ((Number) config().getNodeOrDefault("server.hotFiles.revalidateInterval", 5000)).longValue();
+	}
+
+	// Loads a file and its variants into memory on a worker thread, and stores the entry
+	private static Future<Void> _load(String path, FileProps props) {
+		Future<PrecompressedFiles.Variant> brFut = PrecompressedFiles.enabled() ? PrecompressedFiles.find(path, props, "br") : Future.succeededFuture(null);
+		Future<PrecompressedFiles.Variant> gzFut = PrecompressedFiles.enabled() ? PrecompressedFiles.find(path, props, "gzip") : Future.succeededFuture(null);
+
+		return brFut.compose(br -> gzFut.compose(gz -> vertx().<Entry>executeBlocking(promise -> {
+			try {
+				Buffer content = _read(path);
+
+				// Don't store the entry if the file changed while it was read
+				if(content.length() != props.size()) {
+					promise.complete(null);
+					return;
+				}
+
+				String name = Paths.get(path).getFileName().toString();
+				promise.complete(new Entry(
+						content,
+						br == null ? null : _read(br.path()),
+						gz == null ? null : _read(gz.path()),
+						ResponseUtils.mimeForFilename(name),
+						props,
+						PrecompressedFiles.compressible(name)
+				));
+			} catch(IOException e) {
+				promise.fail(e);
+			}
+		}, false))).map(entry -> {
+			if(entry != null)
+				_store(path, entry);
+			return null;
+		});
+	}
+
+	// Stores an entry, evicting the least recently used entries to stay within the byte budget
+	private static void _store(String path, Entry entry) {
+		long max = ((Number) config().getNodeOrDefault("server.hotFiles.maxBytes", 16777216)).longValue();
+		if(entry._bytes > max)
+			return;
+
+		synchronized(_entries) {
+			Entry old = _entries.put(path, entry);
+			if(old != null)
+				_bytes -= old._bytes;
+			_bytes += entry._bytes;
+
+			Iterator<Entry> it = _entries.values().iterator();
+			while(_bytes > max && it.hasNext()) {
+				Entry e = it.next();
+				_bytes -= e._bytes;
+				it.remove();
+			}
+		}
+	}
+
+	// Reads an entire file into a heap buffer
+	private static Buffer _read(String path) throws IOException {
+		return Buffer.buffer(Files.readAllBytes(Paths.get(path)));
+	}
+
+	/**
+	 * A file held in memory, along with its precomputed headers
+	 * @since 2.3
+	 */
+	public static class Entry {
+		private final Buffer _content;
+		private final Buffer _br;
+		private final Buffer _gzip;
+		private final String _mime;
+		private final String _length;
+		private final String _etag;
+		private final String _etagBr;
+		private final String _etagGzip;
+		private final String _lastModifiedStr;
+		private final long _lastModified;
+		private final long _size;
+		private final long _bytes;
+		private final boolean _compressible;
+		private volatile long _checked = System.currentTimeMillis();
+
+		// Stores values and precomputes headers
+		private Entry(Buffer content, Buffer br, Buffer gzip, String mime, FileProps props, boolean compressible) {
+			_content = content;
+			_br = br;
+			_gzip = gzip;
+			_mime = mime;
+			_length = Integer.toString(content.length());
+			_etag = ResponseUtils.fileEtag(props, null);
+			_etagBr = ResponseUtils.fileEtag(props, "br");
+			_etagGzip = ResponseUtils.fileEtag(props, "gzip");
+			_lastModifiedStr = ResponseUtils.formatDate(props.lastModifiedTime());
+			_lastModified = props.lastModifiedTime();
+			_size = props.size();
+			_bytes = content.length()+(br == null ? 0 : br.length())+(gzip == null ? 0 : gzip.length());
+			_compressible = compressible;
+		}
+
+		/**
+		 * Returns the file's content
+		 * @return The file's content
+		 * @since 2.3
+		 */
+		public Buffer content() {
+			return _content;
+		}
+		/**
+		 * Returns the file's Brotli variant, or null if it has none
+		 * @return The file's Brotli variant
+		 * @since 2.3
+		 */
+		public Buffer br() {
+			return _br;
+		}
+		/**
+		 * Returns the file's gzip variant, or null if it has none
+		 * @return The file's gzip variant
+		 * @since 2.3
+		 */
+		public Buffer gzip() {
+			return _gzip;
+		}
+		/**
+		 * Returns the file's MIME type, or null if unknown
+		 * @return The file's MIME type
+		 * @since 2.3
+		 */
+		public String mime() {
+			return _mime;
+		}
+		/**
+		 * Returns the file's length as a string, ready to be sent as Content-Length
+		 * @return The file's length
+		 * @since 2.3
+		 */
+		public String length() {
+			return _length;
+		}
+		/**
+		 * Returns the file's ETag for the specified Content-Encoding
+		 * @param encoding The encoding ("br" or "gzip"), or null for the file as-is
+		 * @return The file's ETag
+		 * @since 2.3
+		 */
+		public String etag(String encoding) {
+			if("br".equals(encoding))
+				return _etagBr;
+			else if("gzip".equals(encoding))
+				return _etagGzip;
+			else
+				return _etag;
+		}
+		/**
+		 * Returns the file's modification time, formatted as an HTTP date
+		 * @return The file's formatted modification time
+		 * @since 2.3
+		 */
+		public String lastModifiedHeader() {
+			return _lastModifiedStr;
+		}
+		/**
+		 * Returns the file's modification time
+		 * @return The file's modification time
+		 * @since 2.3
+		 */
+		public long lastModified() {
+			return _lastModified;
+		}
+		/**
+		 * Returns whether the file is worth compressing
+		 * @return Whether the file is worth compressing
+		 * @since 2.3
+		 */
+		public boolean compressible() {
+			return _compressible;
+		}
+	}
+}
@@ -0,0 +1,331 @@
+package net.termer.twine.utils;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.auth.VertxContextPRNG;
+import io.vertx.ext.web.Session;
+import io.vertx.ext.web.sstore.SessionStore;
+import io.vertx.ext.web.sstore.impl.SharedDataSessionImpl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.termer.twine.Twine.logger;
+
+/**
+ * Session store that keeps sessions in memory and in an append-only file, so sessions survive restarts.
+ * Every change to a session is appended to the file from a dedicated thread, and the file is replayed when the store is created.
+ * Expired sessions are removed periodically, and the file is compacted (rewritten with only the current sessions) once it grows well past the size of the current sessions.
+ * Sessions are stored serialized, so like with clustered sessions, session data must be serializable (JSON types, Buffers, or ClusterSerializable objects).
+ * @author termer
+ * @since 2.3
+ */
+public class PersistentSessionStore implements SessionStore {
+	// Record types in the session file
+	private static final byte RECORD_PUT = 1;
+	private static final byte RECORD_DELETE = 2;
+	private static final byte RECORD_CLEAR = 3;
+	// Size of a record's header (type and length)
+	private static final int HEADER_SIZE = 5;
+	// Minimum size of the session file before it is compacted (bytes)
+	private static final long MIN_COMPACT_SIZE = 1024*1024;
+
+	// Sessions, key: session ID
+	private final ConcurrentHashMap<String, Entry> _sessions = new ConcurrentHashMap<>();
+	private final AtomicLong _liveBytes = new AtomicLong();
+	private final ExecutorService _writer = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r);
+		thread.setName("SessionWritingThread");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private Vertx _vertx;
+	private VertxContextPRNG _random;
+	private Path _path;
+	private FileChannel _channel;
+	private long _fileSize = 0;
+	private long _reaper = -1;
+
+	/**
+	 * Creates a new PersistentSessionStore and loads the sessions in its file
+	 * @param vertx The Vert.x instance to use
+	 * @param path The path of the session file
+	 * @param reaperInterval How often to remove expired sessions (milliseconds)
+	 * @return The new session store
+	 * @since 2.3
+	 */
+	public static PersistentSessionStore create(Vertx vertx, String path, long reaperInterval) {
+		PersistentSessionStore store = new PersistentSessionStore();
+		store.init(vertx, new JsonObject()
+				.put("path", path)
+				.put("reaperInterval", reaperInterval)
+		);
+
+		return store;
+	}
+
+	/**
+	 * Initializes the store, loading the sessions in its file.
+	 * Options: "path" (the session file, default "sessions.dat") and "reaperInterval" (how often to remove expired sessions, default 1000 milliseconds).
+	 * @param vertx The Vert.x instance to use
+	 * @param options The store's options
+	 * @return This store
+	 * @since 2.3
+	 */
+	public SessionStore init(Vertx vertx, JsonObject options) {
+		_vertx = vertx;
+		_random = VertxContextPRNG.current(vertx);
+		_path = Paths.get(options.getString("path", "sessions.dat")).toAbsolutePath();
+
+		try {
+			_load();
+			_channel = FileChannel.open(_path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		} catch(IOException e) {
+			throw new RuntimeException("Failed to open session file "+_path, e);
+		}
+
+		_reaper = vertx.setPeriodic(options.getLong("reaperInterval", 1000L), id -> _reap());
+
+		return this;
+	}
+
+	public long retryTimeout() {
+		return 0;
+	}
+
+	public Session createSession(long timeout) {
+		return new SharedDataSessionImpl(_random, timeout, DEFAULT_SESSIONID_LENGTH);
+	}
+	public Session createSession(long timeout, int length) {
+		return new SharedDataSessionImpl(_random, timeout, length);
+	}
+
+	public void get(String id, Handler<AsyncResult<Session>> resultHandler) {
+		Entry entry = _sessions.get(id);
+		SharedDataSessionImpl session = null;
+
+		if(entry != null && entry._expires >= System.currentTimeMillis()) {
+			session = new SharedDataSessionImpl(_random);
+			session.readFromBuffer(0, entry._data);
+		}
+
+		resultHandler.handle(Future.succeededFuture(session));
+	}
+
+	public void delete(String id, Handler<AsyncResult<Void>> resultHandler) {
+		synchronized(_sessions) {
+			Entry old = _sessions.remove(id);
+			if(old != null) {
+				_liveBytes.addAndGet(-old._data.length());
+				_append(RECORD_DELETE, Buffer.buffer(id));
+			}
+		}
+
+		resultHandler.handle(Future.succeededFuture());
+	}
+
+	public void put(Session session, Handler<AsyncResult<Void>> resultHandler) {
+		SharedDataSessionImpl sess = (SharedDataSessionImpl) session;
+
+		// Serialize on the caller's thread, since the session may be changed once this returns.
+		// Records are queued while holding the lock so they are written in the same order as the changes were made.
+		synchronized(_sessions) {
+			Entry old = _sessions.get(sess.id());
+			if(old != null && old._version != sess.version()) {
+				resultHandler.handle(Future.failedFuture("Version mismatch"));
+				return;
+			}
+
+			sess.incrementVersion();
+			Buffer data = Buffer.buffer();
+			sess.writeToBuffer(data);
+			_sessions.put(sess.id(), new Entry(data, sess.version(), sess.lastAccessed()+sess.timeout()));
+			_liveBytes.addAndGet(data.length()-(old == null ? 0 : old._data.length()));
+			_append(RECORD_PUT, data);
+		}
+
+		resultHandler.handle(Future.succeededFuture());
+	}
+
+	public void clear(Handler<AsyncResult<Void>> resultHandler) {
+		synchronized(_sessions) {
+			_sessions.clear();
+			_liveBytes.set(0);
+			_append(RECORD_CLEAR, Buffer.buffer());
+		}
+
+		resultHandler.handle(Future.succeededFuture());
+	}
+
+	public void size(Handler<AsyncResult<Integer>> resultHandler) {
+		resultHandler.handle(Future.succeededFuture(_sessions.size()));
+	}
+
+	/**
+	 * Stops removing expired sessions, and waits for pending changes to be written to the session file
+	 * @since 2.3
+	 */
+	public void close() {
+		if(_reaper > -1)
+			_vertx.cancelTimer(_reaper);
+		_writer.shutdown();
+		try {
+			if(!_writer.awaitTermination(5, TimeUnit.SECONDS))
+				logger().warn("Timed out while writing sessions to "+_path);
+			_channel.close();
+		} catch(Exception e) {
+			logger().error("Failed to close session file "+_path);
+			e.printStackTrace();
+		}
+	}
+
+	// Removes expired sessions, and compacts the file if it's mostly outdated records
+	private void _reap() {
+		long now = System.currentTimeMillis();
+		for(Map.Entry<String, Entry> entry : _sessions.entrySet()) {
+			if(entry.getValue()._expires < now) {
+				synchronized(_sessions) {
+					Entry old = entry.getValue();
+					if(_sessions.remove(entry.getKey(), old)) {
+						_liveBytes.addAndGet(-old._data.length());
+						_append(RECORD_DELETE, Buffer.buffer(entry.getKey()));
+					}
+				}
+			}
+		}
+
+		_writer.execute(() -> {
+			if(_fileSize > MIN_COMPACT_SIZE && _fileSize > _liveBytes.get()*2)
+				_compact();
+		});
+	}
+
+	// Queues a record to be appended to the session file
+	private void _append(byte type, Buffer data) {
+		try {
+			_writer.execute(() -> {
+				try {
+					ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE+data.length());
+					buf.put(type).putInt(data.length()).put(data.getBytes()).flip();
+					while(buf.hasRemaining())
+						_fileSize += _channel.write(buf);
+				} catch(IOException e) {
+					logger().error("Failed to write session to "+_path);
+					e.printStackTrace();
+				}
+			});
+		} catch(Exception e) {
+			// The writer was shut down
+			logger().warn("Session change was not written because the store is closed");
+		}
+	}
+
+	// Rewrites the session file with only the current sessions. Only called on the writer thread.
+	private void _compact() {
+		Path tmp = _path.resolveSibling(_path.getFileName()+".tmp");
+		try {
+			long size = 0;
+			try(FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				for(Entry entry : _sessions.values()) {
+					ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE+entry._data.length());
+					buf.put(RECORD_PUT).putInt(entry._data.length()).put(entry._data.getBytes()).flip();
+					while(buf.hasRemaining())
+						size += out.write(buf);
+				}
+			}
+
+			// Changes made after the sessions were copied are still queued, and will be appended to the new file
+			_channel.close();
+			Files.move(tmp, _path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			_channel = FileChannel.open(_path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			_fileSize = size;
+		} catch(IOException e) {
+			logger().error("Failed to compact session file "+_path);
+			e.printStackTrace();
+
+			try {
+				if(!_channel.isOpen())
+					_channel = FileChannel.open(_path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			} catch(IOException e2) {
+				logger().error("Failed to reopen session file "+_path);
+				e2.printStackTrace();
+			}
+		}
+	}
+
+	// Replays the session file into memory, dropping any incomplete record at the end (left by a crash while writing)
+	private void _load() throws IOException {
+		if(!Files.exists(_path))
+			return;
+
+		Buffer file = Buffer.buffer(Files.readAllBytes(_path));
+		long now = System.currentTimeMillis();
+		int pos = 0;
+		while(pos+HEADER_SIZE <= file.length()) {
+			byte type = file.getByte(pos);
+			int len = file.getInt(pos+1);
+			if(len < 0 || pos+HEADER_SIZE+len > file.length())
+				break;
+
+			Buffer data = file.getBuffer(pos+HEADER_SIZE, pos+HEADER_SIZE+len);
+			if(type == RECORD_PUT) {
+				SharedDataSessionImpl sess = new SharedDataSessionImpl(_random);
+				sess.readFromBuffer(0, data);
+				_sessions.put(sess.id(), new Entry(data, sess.version(), sess.lastAccessed()+sess.timeout()));
+			} else if(type == RECORD_DELETE) {
+				_sessions.remove(data.toString(StandardCharsets.UTF_8));
+			} else if(type == RECORD_CLEAR) {
+				_sessions.clear();
+			} else {
+				break;
+			}
+
+			pos += HEADER_SIZE+len;
+		}
+
+		if(pos < file.length()) {
+			logger().warn("Session file "+_path+" ends with an incomplete or unknown record, discarding it");
+			try(FileChannel channel = FileChannel.open(_path, StandardOpenOption.WRITE)) {
+				channel.truncate(pos);
+			}
+		}
+		_fileSize = pos;
+
+		// Drop sessions that expired while the server was down
+		_sessions.values().removeIf(entry -> entry._expires < now);
+		for(Entry entry : _sessions.values())
+			_liveBytes.addAndGet(entry._data.length());
+
+		logger().info("Loaded "+_sessions.size()+" session(s) from "+_path);
+	}
+
+	// A serialized session
+	private static class Entry {
+		private final Buffer _data;
+		private final int _version;
+		private final long _expires;
+
+		private Entry(Buffer data, int version, long expires) {
+			_data = data;
+			_version = version;
+			_expires = expires;
+		}
+	}
+}
\ No newline at end of file
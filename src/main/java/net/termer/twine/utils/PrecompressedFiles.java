@@ -0,0 +1,433 @@
+package net.termer.twine.utils;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.file.FileProps;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static net.termer.twine.ServerManager.vertx;
+import static net.termer.twine.Twine.config;
+import static net.termer.twine.Twine.logger;
+
+/**
+ * Utility class for finding and generating pre-compressed variants of static files.
+ * Variants are either sidecar files next to the original (file.css.br, file.css.gz), or gzip files generated into the configured cache directory.
+ * Serving a pre-compressed variant avoids compressing the same file on the event loop for every request.
+ * @author termer
+ * @since 2.3
+ */
+public class PrecompressedFiles {
+	// Maximum amount of files to remember variants for
+	private static final int MAX_ENTRIES = 4096;
+
+	// Known variants for files, key: absolute path of the original file
+	private static final LinkedHashMap<String, Variants> _variants = new LinkedHashMap<String, Variants>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, Variants> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+	// Files that are currently having variants generated
+	private static final Set<String> _generating = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Returns whether serving pre-compressed variants is enabled
+	 * @return Whether serving pre-compressed variants is enabled
+	 * @since 2.3
+	 */
+	public static boolean enabled() {
+		return (boolean) config().getNodeOrDefault("server.precompressed.enable", true);
+	}
+
+	/**
+	 * Finds the best pre-compressed variant of a file that the client accepts, or null if there is none.
+	 * If no gzip variant exists and generation is enabled, one will be generated in the background for later requests.
+	 * @param path The absolute path of the original file
+	 * @param props The original file's properties
+	 * @param acceptEncoding The request's Accept-Encoding header, or null if none was sent
+	 * @return A future that returns the best variant, or null if none is available
+	 * @since 2.3
+	 */
+	public static Future<Variant> find(String path, FileProps props, String acceptEncoding) {
+		boolean br = acceptsEncoding(acceptEncoding, "br");
+		boolean gzip = acceptsEncoding(acceptEncoding, "gzip");
+
+		// Don't touch the filesystem if the client can't use any variants
+		if(!br && !gzip)
+			return Future.succeededFuture(null);
+
+		Variants known;
+		synchronized(_variants) {
+			known = _variants.get(path);
+		}
+		// Known variants (including knowing there is no gzip variant, such as when generating one didn't make the file smaller) are kept until the original changes
+		if(known != null && known._lastModified == props.lastModifiedTime() && known._size == props.size())
+			return Future.succeededFuture(known.best(br, gzip));
+
+		// Probe for variants
+		long mtime = props.lastModifiedTime();
+		long size = props.size();
+		Future<FileProps> brFut = _propsOrNull(path+".br");
+		Future<FileProps> gzFut = _propsOrNull(path+".gz");
+		String cachePath = cachePathFor(path, mtime, size);
+		Future<FileProps> cacheFut = _propsOrNull(cachePath);
+
+		return CompositeFuture.all(brFut, gzFut, cacheFut).map(v -> {
+			Variant brVar = _variantOrNull(path+".br", "br", brFut.result(), mtime);
+			Variant gzVar = _variantOrNull(path+".gz", "gzip", gzFut.result(), mtime);
+			// Generated variants are named after the original's modification time and size, so any that exists matches the original
+			if(gzVar == null)
+				gzVar = _variantOrNull(cachePath, "gzip", cacheFut.result(), Long.MIN_VALUE);
+
+			// Generate a gzip variant for later if there's none
+			if(gzVar == null && _shouldGenerate(path, size))
+				generate(path);
+
+			Variants vars = new Variants(mtime, size, brVar, gzVar);
+			synchronized(_variants) {
+				_variants.put(path, vars);
+			}
+
+			return vars.best(br, gzip);
+		});
+	}
+
+	/**
+	 * Generates a gzip variant of the specified file in the cache directory, on a worker thread.
+	 * The variant is only kept if it is smaller than the original.
+	 * Does nothing if the file is already being generated.
+	 * If no variant is written (because it wasn't smaller or generation failed), the file's known variants are kept, so it isn't generated again until the file changes.
+	 * @param path The absolute path of the file to compress
+	 * @return A future that completes once generation is finished
+	 * @since 2.3
+	 */
+	public static Future<Void> generate(String path) {
+		if(!_generating.add(path))
+			return Future.succeededFuture();
+
+		return vertx().<Boolean>executeBlocking(promise -> {
+			try {
+				promise.complete(_generateBlocking(path));
+			} catch(IOException e) {
+				promise.fail(e);
+			}
+		}, false).onComplete(res -> {
+			_generating.remove(path);
+
+			if(res.succeeded() && res.result()) {
+				// Forget variants so the new one is picked up
+				synchronized(_variants) {
+					_variants.remove(path);
+				}
+				HotFiles.forget(path);
+			} else if(res.failed()) {
+				logger().error("Failed to generate compressed variant of "+path+":");
+				res.cause().printStackTrace();
+			}
+		}).mapEmpty();
+	}
+
+	/**
+	 * Generates gzip variants for all compressible files in the specified directory and its subdirectories, on a worker thread
+	 * @param dir The directory
+	 * @return A future that completes once all variants have been generated
+	 * @since 2.3
+	 */
+	public static Future<Void> generateAll(String dir) {
+		int minSize = (int) config().getNodeOrDefault("server.precompressed.minSize", 1024);
+
+		return vertx().executeBlocking(promise -> {
+			Path root = Paths.get(dir).toAbsolutePath().normalize();
+
+			if(Files.isDirectory(root)) {
+				try(Stream<Path> paths = Files.walk(root)) {
+					paths.filter(p -> {
+						String name = p.getFileName().toString();
+						return Files.isRegularFile(p) && !name.endsWith(".gz") && !name.endsWith(".br") && compressible(name);
+					}).forEach(p -> {
+						String path = p.toString();
+
+						try {
+							if(Files.size(p) >= minSize && _generating.add(path)) {
+								try {
+									_generateBlocking(path);
+								} finally {
+									_generating.remove(path);
+								}
+							}
+						} catch(IOException e) {
+							logger().error("Failed to generate compressed variant of "+path+":");
+							e.printStackTrace();
+						}
+					});
+				} catch(IOException e) {
+					promise.fail(e);
+					return;
+				}
+			}
+
+			synchronized(_variants) {
+				_variants.clear();
+			}
+			HotFiles.clear();
+			promise.complete();
+		}, false);
+	}
+
+	/**
+	 * Forgets known variants for all files whose paths start with the specified prefix, so they are looked up again on their next request
+	 * @param prefix The path prefix
+	 * @since 2.3
+	 */
+	public static void forget(String prefix) {
+		synchronized(_variants) {
+			_variants.keySet().removeIf(path -> path.startsWith(prefix));
+		}
+	}
+
+	/**
+	 * Returns the path where the generated gzip variant of the specified file is stored.
+	 * The name includes the original's modification time and size, so a variant is only used for the exact version of the file it was generated from.
+	 * @param path The absolute path of the original file
+	 * @param lastModified The original file's modification time
+	 * @param size The original file's size
+	 * @return The path of the generated variant
+	 * @since 2.3
+	 */
+	public static String cachePathFor(String path, long lastModified, long size) {
+		return _cacheDirectory()+_hash(path)+'-'+lastModified+'-'+size+".gz";
+	}
+
+	/**
+	 * Returns whether files with the specified name are worth compressing, based on their MIME type
+	 * @param filename The filename
+	 * @return Whether the file is worth compressing
+	 * @since 2.3
+	 */
+	public static boolean compressible(String filename) {
+		String mime = ResponseUtils.mimeForFilename(filename);
+
+		return mime != null && (
+				mime.startsWith("text/") ||
+				mime.contains("javascript") ||
+				mime.contains("json") ||
+				mime.contains("xml") ||
+				mime.startsWith("application/wasm") ||
+				mime.startsWith("font/ttf") ||
+				mime.startsWith("font/otf")
+		);
+	}
+
+	/**
+	 * Returns whether the provided Accept-Encoding header accepts the specified encoding
+	 * @param acceptEncoding The Accept-Encoding header, or null
+	 * @param encoding The encoding, such as "gzip"
+	 * @return Whether the encoding is accepted
+	 * @since 2.3
+	 */
+	public static boolean acceptsEncoding(String acceptEncoding, String encoding) {
+		if(acceptEncoding == null)
+			return false;
+
+		int len = acceptEncoding.length();
+		int i = 0;
+		while(i < len) {
+			// Skip whitespace and commas
+			while(i < len && (acceptEncoding.charAt(i) == ' ' || acceptEncoding.charAt(i) == ','))
+				i++;
+
+			int start = i;
+			while(i < len && acceptEncoding.charAt(i) != ',' && acceptEncoding.charAt(i) != ';' && acceptEncoding.charAt(i) != ' ')
+				i++;
+			boolean match = i-start == encoding.length() && acceptEncoding.regionMatches(true, start, encoding, 0, encoding.length());
+
+			// Check for q=0, which means the encoding is not accepted
+			int end = acceptEncoding.indexOf(',', i);
+			if(end < 0)
+				end = len;
+			if(match) {
+				int q = acceptEncoding.indexOf("q=", i);
+				if(q < 0 || q > end)
+					return true;
+
+				for(int j = q+2; j < end; j++) {
+					char c = acceptEncoding.charAt(j);
+					if(c >= '1' && c <= '9')
+						return true;
+					if(c != '0' && c != '.')
+						break;
+				}
+				return false;
+			}
+			i = end;
+		}
+
+		return false;
+	}
+
+	// Whether a gzip variant should be generated for a file
+	private static boolean _shouldGenerate(String path, long size) {
+		return (boolean) config().getNodeOrDefault("server.precompressed.generate", true) &&
+				size >= (int) config().getNodeOrDefault("server.precompressed.minSize", 1024) &&
+				compressible(path);
+	}
+
+	// Returns the configured cache directory, ending with a slash
+	private static String _cacheDirectory() {
+		String dir = (String) config().getNodeOrDefault("server.precompressed.cacheDirectory", "compressed/");
+		if(!dir.endsWith("/"))
+			dir += '/';
+
+		return dir;
+	}
+
+	// Compresses a file into the cache directory, blocking, and returns whether a variant for the file's current version exists afterwards
+	private static boolean _generateBlocking(String path) throws IOException {
+		Path src = Paths.get(path);
+		BasicFileAttributes attrs = Files.readAttributes(src, BasicFileAttributes.class);
+		long mtime = attrs.lastModifiedTime().toMillis();
+		long size = attrs.size();
+		Path dest = Paths.get(cachePathFor(path, mtime, size));
+
+		// Already generated for this version of the file
+		if(Files.isRegularFile(dest))
+			return true;
+
+		Path tmp = Paths.get(dest+".tmp");
+		Files.createDirectories(dest.getParent());
+
+		// Remove variants generated from previous versions of the file
+		String hash = _hash(path);
+		try(DirectoryStream<Path> old = Files.newDirectoryStream(dest.getParent(), hash+"-*.gz")) {
+			for(Path p : old)
+				Files.deleteIfExists(p);
+		}
+
+		try(InputStream in = Files.newInputStream(src);
+			OutputStream out = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)), 65536) {{ def.setLevel(Deflater.BEST_COMPRESSION); }}) {
+			byte[] buf = new byte[65536];
+			int read;
+			while((read = in.read(buf)) > 0)
+				out.write(buf, 0, read);
+		}
+
+		// Only keep variants that are actually smaller, and of a file that didn't change while it was being compressed
+		BasicFileAttributes after = Files.readAttributes(src, BasicFileAttributes.class);
+		if(Files.size(tmp) < size && after.lastModifiedTime().toMillis() == mtime && after.size() == size) {
+			Files.move(tmp, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		} else {
+			Files.deleteIfExists(tmp);
+			return false;
+		}
+	}
+
+	// Returns a file's properties, or null if it doesn't exist or can't be read
+	private static Future<FileProps> _propsOrNull(String path) {
+		return vertx().fileSystem().props(path).otherwise((FileProps) null);
+	}
+
+	// Returns a variant if the provided properties describe a regular file modified no earlier than the specified time
+	private static Variant _variantOrNull(String path, String encoding, FileProps props, long minMtime) {
+		if(props == null || !props.isRegularFile() || props.lastModifiedTime() < minMtime)
+			return null;
+		else
+			return new Variant(path, encoding, props.size());
+	}
+
+	// Hashes a path into a filename
+	private static String _hash(String path) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(path.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(digest.length*2);
+			for(byte b : digest)
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			return sb.toString();
+		} catch(NoSuchAlgorithmException e) {
+			// SHA-1 is required to be present on all Java platforms
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Known variants of a single file, for the version of the file with the stored modification time and size
+	private static class Variants {
+		private final long _lastModified;
+		private final long _size;
+		private final Variant _br;
+		private final Variant _gzip;
+
+		// Stores values
+		private Variants(long lastModified, long size, Variant br, Variant gzip) {
+			_lastModified = lastModified;
+			_size = size;
+			_br = br;
+			_gzip = gzip;
+		}
+
+		// Returns the best variant for what the client accepts
+		private Variant best(boolean br, boolean gzip) {
+			if(br && _br != null)
+				return _br;
+			else if(gzip && _gzip != null)
+				return _gzip;
+			else
+				return null;
+		}
+	}
+
+	/**
+	 * A pre-compressed variant of a file
+	 * @since 2.3
+	 */
+	public static class Variant {
+		private final String _path;
+		private final String _encoding;
+		private final long _size;
+
+		// Stores values
+		private Variant(String path, String encoding, long size) {
+			_path = path;
+			_encoding = encoding;
+			_size = size;
+		}
+
+		/**
+		 * Returns the path of the variant file
+		 * @return The path of the variant file
+		 * @since 2.3
+		 */
+		public String path() {
+			return _path;
+		}
+
+		/**
+		 * Returns the variant's encoding, to be sent in the Content-Encoding header
+		 * @return The variant's encoding
+		 * @since 2.3
+		 */
+		public String encoding() {
+			return _encoding;
+		}
+
+		/**
+		 * Returns the size of the variant file
+		 * @return The size of the variant file
+		 * @since 2.3
+		 */
+		public long size() {
+			return _size;
+		}
+	}
+}
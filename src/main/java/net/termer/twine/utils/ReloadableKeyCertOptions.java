@@ -0,0 +1,228 @@
+package net.termer.twine.utils;
+
+import io.netty.handler.ssl.util.SimpleKeyManagerFactory;
+import io.vertx.core.Vertx;
+import io.vertx.core.net.KeyCertOptions;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.ManagerFactoryParameters;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedKeyManager;
+import javax.net.ssl.X509KeyManager;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * KeyCertOptions whose certificates can be swapped while servers are running.
+ * Servers keep using the same options object, and every new TLS handshake uses the certificates that are current at the time, while existing connections are unaffected.
+ * @author termer
+ * @since 2.3
+ */
+public class ReloadableKeyCertOptions implements KeyCertOptions {
+	// Maximum number of server names to cache key managers for, per set of loaded certificates
+	private static final int MAX_CACHED_NAMES = 1024;
+
+	private volatile Loaded _loaded;
+	// The certificates that were loaded before the current ones, kept for handshakes that chose an alias before the last swap
+	private volatile Loaded _previous;
+	private long _generation = 0;
+	private final DelegatingKeyManager _keyManager = new DelegatingKeyManager();
+
+	/**
+	 * Creates new ReloadableKeyCertOptions and loads the specified options' certificates
+	 * @param vertx The Vert.x instance to load certificates with
+	 * @param options The options to load certificates from (e.g. PemKeyCertOptions or JksOptions)
+	 * @throws Exception If loading the certificates fails
+	 * @since 2.3
+	 */
+	public ReloadableKeyCertOptions(Vertx vertx, KeyCertOptions options) throws Exception {
+		update(vertx, options);
+	}
+
+	/**
+	 * Loads the specified options' certificates and swaps them in.
+	 * If loading fails, the current certificates are kept.
+	 * @param vertx The Vert.x instance to load certificates with
+	 * @param options The options to load certificates from (e.g. PemKeyCertOptions or JksOptions)
+	 * @throws Exception If loading the certificates fails
+	 * @since 2.3
+	 */
+	public synchronized void update(Vertx vertx, KeyCertOptions options) throws Exception {
+		// Load everything before swapping, so a failure leaves the current certificates in place
+		X509KeyManager defaultManager = null;
+		for(KeyManager km : options.getKeyManagerFactory(vertx).getKeyManagers()) {
+			if(km instanceof X509KeyManager) {
+				defaultManager = (X509KeyManager) km;
+				break;
+			}
+		}
+		if(defaultManager == null)
+			throw new IllegalArgumentException("The options do not contain any X.509 certificates");
+
+		Loaded loaded = new Loaded(_generation+1, options, defaultManager, options.keyManagerMapper(vertx));
+		_generation++;
+		_previous = _loaded;
+		_loaded = loaded;
+	}
+
+	/**
+	 * Returns the options that the current certificates were loaded from
+	 * @return The current options
+	 * @since 2.3
+	 */
+	public KeyCertOptions options() {
+		return _loaded._options;
+	}
+
+	/**
+	 * Returns these options, rather than a copy.
+	 * Vert.x copies options when servers are created, and servers need to share this object to see updated certificates.
+	 * @return These options
+	 * @since 2.3
+	 */
+	public KeyCertOptions copy() {
+		return this;
+	}
+
+	public KeyManagerFactory getKeyManagerFactory(Vertx vertx) {
+		return new SimpleKeyManagerFactory() {
+			protected void engineInit(KeyStore keyStore, char[] password) {}
+			protected void engineInit(ManagerFactoryParameters params) {}
+			protected KeyManager[] engineGetKeyManagers() {
+				return new KeyManager[] { _keyManager };
+			}
+		};
+	}
+
+	/**
+	 * Returns a mapper that returns the current key manager for a server name.
+	 * Key managers are cached per server name for each set of loaded certificates, so repeated handshakes for the same name get the same key manager until certificates are reloaded.
+	 * Vert.x caches an SSL context for every certificate it's given and never evicts them, so each reload that changes certificates adds one context for every certificate requested afterwards, and memory use grows with the number of reloads.
+	 * @param vertx The Vert.x instance
+	 * @return The key manager mapper
+	 * @since 2.3
+	 */
+	public Function<String, X509KeyManager> keyManagerMapper(Vertx vertx) {
+		return serverName -> _loaded.manager(serverName);
+	}
+
+	// Loaded certificates
+	private static class Loaded {
+		private final long _generation;
+		private final KeyCertOptions _options;
+		private final X509KeyManager _default;
+		private final Function<String, X509KeyManager> _mapper;
+		// Key managers for server names, key: server name
+		private final ConcurrentHashMap<String, X509KeyManager> _managers = new ConcurrentHashMap<>();
+
+		private Loaded(long generation, KeyCertOptions options, X509KeyManager defaultManager, Function<String, X509KeyManager> mapper) {
+			_generation = generation;
+			_options = options;
+			_default = defaultManager;
+			_mapper = mapper;
+		}
+
+		// Returns the key manager for a server name, or null if there's no certificate for it
+		private X509KeyManager manager(String serverName) {
+			X509KeyManager km = _managers.get(serverName);
+			if(km == null) {
+				km = _mapper.apply(serverName);
+
+				// Only cache names that have a certificate, and stop caching once there are too many (wildcard certificates match any number of names)
+				if(km != null && _managers.size() < MAX_CACHED_NAMES) {
+					X509KeyManager existing = _managers.putIfAbsent(serverName, km);
+					if(existing != null)
+						km = existing;
+				}
+			}
+
+			return km;
+		}
+
+		// Prefixes an alias with this generation, so it can be resolved against these certificates later
+		private String alias(String alias) {
+			return alias == null ? null : _generation+":"+alias;
+		}
+		private String[] aliases(String[] aliases) {
+			if(aliases == null)
+				return null;
+			String[] res = new String[aliases.length];
+			for(int i = 0; i < res.length; i++)
+				res[i] = alias(aliases[i]);
+			return res;
+		}
+	}
+
+	// Returns the loaded certificates that a generation-prefixed alias was chosen from, or null if they're no longer kept
+	private Loaded _loadedFor(String alias) {
+		int idx = alias == null ? -1 : alias.indexOf(':');
+		if(idx < 0)
+			return null;
+
+		long gen;
+		try {
+			gen = Long.parseLong(alias.substring(0, idx));
+		} catch(NumberFormatException e) {
+			return null;
+		}
+
+		Loaded loaded = _loaded;
+		if(loaded._generation == gen)
+			return loaded;
+		Loaded prev = _previous;
+		if(prev != null && prev._generation == gen)
+			return prev;
+		return null;
+	}
+
+	// Key manager that passes everything to the current default key manager.
+	// Aliases are prefixed with the generation of the certificates they were chosen from, so a handshake that chooses an alias before a reload still gets the matching chain and key after it.
+	private class DelegatingKeyManager extends X509ExtendedKeyManager {
+		public String[] getClientAliases(String keyType, Principal[] issuers) {
+			Loaded loaded = _loaded;
+			return loaded.aliases(loaded._default.getClientAliases(keyType, issuers));
+		}
+		public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+			Loaded loaded = _loaded;
+			return loaded.alias(loaded._default.chooseClientAlias(keyType, issuers, socket));
+		}
+		public String[] getServerAliases(String keyType, Principal[] issuers) {
+			Loaded loaded = _loaded;
+			return loaded.aliases(loaded._default.getServerAliases(keyType, issuers));
+		}
+		public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+			Loaded loaded = _loaded;
+			return loaded.alias(loaded._default.chooseServerAlias(keyType, issuers, socket));
+		}
+		public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+			Loaded loaded = _loaded;
+			X509KeyManager km = loaded._default;
+			if(km instanceof X509ExtendedKeyManager)
+				return loaded.alias(((X509ExtendedKeyManager) km).chooseEngineServerAlias(keyType, issuers, engine));
+			else
+				return loaded.alias(km.chooseServerAlias(keyType, issuers, null));
+		}
+		public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine) {
+			Loaded loaded = _loaded;
+			X509KeyManager km = loaded._default;
+			if(km instanceof X509ExtendedKeyManager)
+				return loaded.alias(((X509ExtendedKeyManager) km).chooseEngineClientAlias(keyType, issuers, engine));
+			else
+				return loaded.alias(km.chooseClientAlias(keyType, issuers, null));
+		}
+		public X509Certificate[] getCertificateChain(String alias) {
+			Loaded loaded = _loadedFor(alias);
+			return loaded == null ? null : loaded._default.getCertificateChain(alias.substring(alias.indexOf(':')+1));
+		}
+		public PrivateKey getPrivateKey(String alias) {
+			Loaded loaded = _loadedFor(alias);
+			return loaded == null ? null : loaded._default.getPrivateKey(alias.substring(alias.indexOf(':')+1));
+		}
+	}
+}
@@ -1,16 +1,25 @@
 package net.termer.twine.utils;
 
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
+import io.vertx.core.CompositeFuture;
 import io.vertx.core.Future;
+import io.vertx.core.file.FileProps;
 import io.vertx.core.file.FileSystem;
 import io.vertx.core.http.HttpServerRequest;
+import io.vertx.ext.web.RoutingContext;
 import net.termer.twine.documents.Documents;
 import net.termer.twine.domains.*;
+import net.termer.twine.metrics.Metrics;
 
 import static net.termer.twine.ServerManager.*;
 import static net.termer.twine.Twine.config;
+import static net.termer.twine.Twine.domains;
 
 /**
  * Utility class for dealing with requests
@@ -18,23 +27,65 @@ import static net.termer.twine.Twine.config;
  * @since 1.0-alpha
  */
 public class RequestUtils {
+	// RoutingContext data key for the request's Domain
+	private static final String DOMAIN_KEY = "twine.domain";
+
 	/**
-	 * Transforms the specified host string into a domain string, or returns "default" if host is null
+	 * Transforms the specified host string into a domain string, or returns "default" if host is null.
+	 * The port is removed, along with a trailing dot (as in "example.com."), and the domain is lowercased.
+	 * IPv6 addresses keep their brackets, so "[::1]:8080" becomes "[::1]".
+	 * No new string is created if the host is already a lowercase domain without a port.
 	 * @param host the host string
 	 * @return the domain string
 	 * @since 1.0-alpha
 	 */
 	public static String domain(String host) {
 		// Return "default" for null hosts
-		if(host == null) {
+		if(host == null)
 			return "default";
+
+		// Find where the hostname ends, skipping over IPv6 addresses' colons
+		int end;
+		if(host.startsWith("[")) {
+			end = host.indexOf(']')+1;
+			if(end == 0)
+				end = host.length();
 		} else {
-			String dom = host.toLowerCase();
-			if(host.contains(":")) {
-				dom = host.split(":")[0];
-			}
-			return dom;
+			end = host.indexOf(':');
+			if(end < 0)
+				end = host.length();
+		}
+		if(end > 0 && host.charAt(end-1) == '.')
+			end--;
+
+		// Only lowercase if needed
+		boolean upper = false;
+		for(int i = 0; i < end && !upper; i++) {
+			char c = host.charAt(i);
+			upper = c >= 'A' && c <= 'Z';
 		}
+
+		String dom = end == host.length() ? host : host.substring(0, end);
+		return upper ? dom.toLowerCase() : dom;
+	}
+
+	/**
+	 * Returns the Domain that the specified request is for, or the default Domain if no domain matches its Host header.
+	 * The Domain is resolved once per request and stored on the RoutingContext, so this can be called any number of times without looking it up again.
+	 * Domains are normally resolved by the first handler on the router, so this only needs to resolve them for requests that fail before that.
+	 * @param r The request's RoutingContext
+	 * @return The request's Domain
+	 * @since 2.3
+	 */
+	public static Domain requestDomain(RoutingContext r) {
+		Domain dom = r.get(DOMAIN_KEY);
+
+		if(dom == null) {
+			dom = domains().byHostnameOrDefault(domain(r.request().host()));
+			r.put(DOMAIN_KEY, dom);
+		}
+
+		return dom;
 	}
 
 	/**
@@ -70,12 +121,36 @@ public class RequestUtils {
 	/**
 	 * Resolves what file the provided path should point to, taking into account directory indexes with extensions registered in Documents.
 	 * If no file for the path is found, this method will return null.
+	 * Results (including misses) are cached in the domain's PathCache, so repeated requests for the same path will not touch the filesystem.
 	 * @param path The path to determine a file for
 	 * @param dom The domain that this path resides on
 	 * @return A future that returns the path to the file selected, or null if no file is found
 	 * @since 2.0
 	 */
 	public static Future<String> resolveFileByPath(String path, Domain dom) {
+		// Check cache before touching the filesystem
+		PathCache cache = dom.pathCache();
+		PathCache.Entry cached = cache.get(path);
+		if(cached != null) {
+			if(Metrics.enabled())
+				Metrics.PATH_RESOLUTION_CACHE_HITS.inc();
+
+			return Future.succeededFuture(cached.file());
+		}
+
+		if(!Metrics.enabled())
+			return _resolve(path, dom);
+
+		long start = System.nanoTime();
+		return _resolve(path, dom).onComplete(res -> Metrics.PATH_RESOLUTION.observeNanos(System.nanoTime()-start));
+	}
+
+	// Resolves a path that isn't in the resolution cache
+	private static Future<String> _resolve(String path, Domain dom) {
+		if((boolean) config().getNodeOrDefault("server.parallelResolution", true))
+			return _resolveParallel(path, dom);
+
+		PathCache cache = dom.pathCache();
 		return Future.future(promise -> {
 			CallbackChain<String> chain = new CallbackChain<>();
 			String[] possiblePaths = possibleFilePaths(path, dom);
@@ -115,6 +190,7 @@ public class RequestUtils {
 			// Get result from chain
 			chain.onEnd(res -> {
 				if(res.succeeded()) {
+					cache.put(path, res.result());
 					promise.complete(res.result());
 				} else {
 					promise.fail(res.cause());
@@ -123,6 +199,45 @@ public class RequestUtils {
 		});
 	}
 
+	// Checks all possible paths at once and returns the first one (in priority order) that is a regular file
+	@SuppressWarnings("rawtypes")
+	private static Future<String> _resolveParallel(String path, Domain dom) {
+		String[] possiblePaths = possibleFilePaths(path, dom);
+		FileSystem fs = vertx().fileSystem();
+
+		// Fetch props for every candidate, treating missing files as not found, but failing on other errors (such as permission errors)
+		List<Future> checks = new ArrayList<>(possiblePaths.length);
+		for(String pth : possiblePaths)
+			checks.add(fs.props(pth).recover(err -> _isMissing(err) ? Future.succeededFuture(null) : Future.failedFuture(err)));
+
+		return CompositeFuture.all(checks).map(res -> {
+			String file = null;
+			for(int i = 0; i < possiblePaths.length; i++) {
+				FileProps props = res.resultAt(i);
+
+				if(props != null && props.isRegularFile()) {
+					file = possiblePaths[i];
+					break;
+				}
+			}
+
+			dom.pathCache().put(path, file);
+			return file;
+		});
+	}
+
+	// Returns whether a filesystem error means the file doesn't exist (including when part of its path is a file rather than a directory)
+	private static boolean _isMissing(Throwable err) {
+		for(Throwable e = err; e != null; e = e.getCause()) {
+			if(e instanceof NoSuchFileException || e instanceof NotDirectoryException)
+				return true;
+			if(e instanceof FileSystemException && "Not a directory".equals(((FileSystemException) e).getReason()))
+				return true;
+		}
+
+		return false;
+	}
+
 	/**
 	 * Returns the IP address of provided request's connection, optionally respecting X-Forwarded-For headers
 	 * @param req The request to get the IP address for
@@ -1,17 +1,31 @@
 package net.termer.twine.utils;
 
 import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
 import io.vertx.core.file.FileProps;
 import io.vertx.core.file.FileSystem;
+import io.vertx.core.file.OpenOptions;
 import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.http.impl.MimeMapping;
 import io.vertx.ext.web.RoutingContext;
 
 import java.io.File;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
 
 import static net.termer.twine.ServerManager.*;
+import static net.termer.twine.Twine.config;
 
 /**
  * Utility class for manipulating HTTP responses and sending data to them
@@ -19,7 +33,9 @@ import static net.termer.twine.ServerManager.*;
  * @since 2.0
  */
 public class ResponseUtils {
-    private static final SimpleDateFormat cacheDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz");
+    // Size of chunks read from files when sending multiple ranges
+    private static final int RANGE_CHUNK_SIZE = 65536;
+    private static final DateTimeFormatter cacheDateFormat = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
 
     /**
      * Send a file and respect byte range requests, and optionally sends caching headers for the file
@@ -30,6 +46,15 @@ public class ResponseUtils {
      */
     public static Future<Void> sendFileRanged(RoutingContext context, String path, boolean sendCachingHeaders) {
         FileSystem fs = vertx().fileSystem();
+        // In-memory tiers are keyed by normalized absolute paths, so they match the paths the file watcher reports
+        String key = Paths.get(path).toAbsolutePath().normalize().toString();
+
+        // Send from memory if the whole file was requested and it's loaded in the hot file tier
+        if(context.request().headers().get("Range") == null && HotFiles.enabled()) {
+            HotFiles.Entry hot = HotFiles.get(key);
+            if(hot != null)
+                return _sendHot(context, hot, sendCachingHeaders);
+        }
 
         return Future.future(promise -> {
             // Open path to check if it's a regular file and fetch its size
@@ -56,49 +81,262 @@ public class ResponseUtils {
 
                 // Write caching headers if enabled
                 if(sendCachingHeaders) {
-                    context.response().putHeader("date", cacheDateFormat.format(new Date()));
+                    context.response().putHeader("date", formatDate(System.currentTimeMillis()));
                     context.response().putHeader("cache-control", "public, max-age=86400");
-                    context.response().putHeader("last-modified", cacheDateFormat.format(new Date(props.lastModifiedTime())));
-                }
+                    context.response().putHeader("last-modified", formatDate(props.lastModifiedTime()));
+                    context.response().putHeader("etag", fileEtag(props, null));
 
-                // Check if range requested
-                if (context.request().headers().get("Range") == null) {
-                    // Send file length on HEAD
-                    if (context.request().method() == HttpMethod.HEAD)
-                        context.response().putHeader("content-length", Long.toString(props.size()));
+                    // Tell the client to use its cached copy if it's still current, without opening the file.
+                    // This only applies to successful responses, since error pages stand for a different resource.
+                    if(context.response().getStatusCode() == 200 && isFresh(context.request(), fileEtag(props, null), props.lastModifiedTime())) {
+                        sendNotModified(context);
+                        promise.complete();
+                        return;
+                    }
+                }
 
-                    // Send correct Content-Type
+                // Check if range requested (only for successful responses)
+                ByteRanges ranges = context.response().getStatusCode() == 200 ? _requestedRanges(context, props) : null;
+                if (ranges == null) {
                     String mime = mimeForFilename(file.getName());
-                    if(mime != null)
-                        context.response().putHeader("Content-Type", mime);
 
-                    // Send full file
-                    context.response().sendFile(file.getAbsolutePath());
-                } else {
-                    // Resolve range parameters
-                    String rangeStr = context.request().headers().get("Range").substring(6);
-                    long off = Long.parseLong(rangeStr.split("-")[0]);
-                    long end = props.size();
-                    long len = end;
+                    // Keep small files in memory for later requests
+                    if(HotFiles.enabled())
+                        HotFiles.offer(key, props);
 
-                    if (!rangeStr.endsWith("-"))
-                        end = Long.parseLong(rangeStr.split("-")[1]);
+                    if(PrecompressedFiles.enabled()) {
+                        // Send a pre-compressed variant if one exists and the client accepts it
+                        PrecompressedFiles.find(key, props, context.request().headers().get("Accept-Encoding")).onComplete(varRes -> {
+                            PrecompressedFiles.Variant variant = varRes.succeeded() ? varRes.result() : null;
 
-                    // Send segment length on HEAD
-                    if (context.request().method() == HttpMethod.HEAD)
-                        context.response().putHeader("content-length", Long.toString((end - off) + 1));
+                            if(variant == null) {
+                                // Skip compressing files that are already compressed
+                                if(mime != null && !PrecompressedFiles.compressible(file.getName()))
+                                    context.response().putHeader("content-encoding", "identity");
 
-                    // Send headers
+                                _sendFull(context, file.getAbsolutePath(), props.size(), mime).onComplete(promise);
+                            } else {
+                                context.response().putHeader("content-encoding", variant.encoding());
+                                if(sendCachingHeaders)
+                                    context.response().putHeader("etag", fileEtag(props, variant.encoding()));
+                                _sendFull(context, variant.path(), variant.size(), mime).onComplete(promise);
+                            }
+                        });
+                    } else {
+                        _sendFull(context, file.getAbsolutePath(), props.size(), mime).onComplete(promise);
+                    }
+                } else if (ranges.unsatisfiable()) {
+                    // None of the ranges are within the file
+                    context.response().headers().remove("etag");
+                    context.response()
+                            .setStatusCode(416)
+                            .putHeader("Content-Range", "bytes */" + props.size())
+                            .end();
+                    promise.complete();
+                } else {
+                    // Ranges refer to the uncompressed file, so it can't be compressed
+                    context.response().putHeader("content-encoding", "identity");
                     context.response().setStatusCode(206);
-                    context.response().putHeader("Content-Range", "bytes " + off + "-" + (end - 1) + "/" + len);
 
-                    // Send file part
-                    context.response().sendFile(file.getAbsolutePath(), off, Math.min(end + 1, len));
+                    if (ranges.count() == 1) {
+                        // Send segment length on HEAD
+                        if (context.request().method() == HttpMethod.HEAD)
+                            context.response().putHeader("content-length", Long.toString(ranges.length(0)));
+
+                        String mime = mimeForFilename(file.getName());
+                        if(mime != null)
+                            context.response().putHeader("Content-Type", mime);
+                        context.response().putHeader("Content-Range", ranges.contentRange(0));
+
+                        // Send file part
+                        context.response().sendFile(file.getAbsolutePath(), ranges.start(0), ranges.length(0)).onComplete(promise);
+                    } else {
+                        _sendMultipart(context, file.getAbsolutePath(), mimeForFilename(file.getName()), ranges).onComplete(promise);
+                    }
                 }
             });
         });
     }
 
+    // Returns the ranges to send for a request, or null if the entire file should be sent
+    private static ByteRanges _requestedRanges(RoutingContext context, FileProps props) {
+        HttpServerRequest req = context.request();
+        String range = req.headers().get("Range");
+
+        // Ranges only apply to GET (and HEAD, which mirrors it)
+        if(range == null || (req.method() != HttpMethod.GET && req.method() != HttpMethod.HEAD))
+            return null;
+
+        // Only send ranges if the client's copy is the same as the current file
+        String ifRange = req.headers().get("If-Range");
+        if(ifRange != null) {
+            ifRange = ifRange.trim();
+
+            if(ifRange.startsWith("\"")) {
+                // Weak ETags can't be used with If-Range
+                if(!ifRange.equals(fileEtag(props, null)))
+                    return null;
+            } else if(!ifRange.startsWith("W/")) {
+                try {
+                    long date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                    if(date/1000 != props.lastModifiedTime()/1000)
+                        return null;
+                } catch(DateTimeParseException e) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+
+        return ByteRanges.parse(range, props.size(), (int) config().getNodeOrDefault("server.static.maxRanges", 16));
+    }
+
+    // Streams multiple ranges of a file as a multipart/byteranges response
+    private static Future<Void> _sendMultipart(RoutingContext context, String path, String mime, ByteRanges ranges) {
+        HttpServerResponse res = context.response();
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong())+Long.toHexString(System.nanoTime());
+
+        // Build part headers up front so the total length is known
+        Buffer[] partHeads = new Buffer[ranges.count()];
+        long length = 0;
+        for(int i = 0; i < partHeads.length; i++) {
+            StringBuilder head = new StringBuilder(128)
+                    .append(i == 0 ? "--" : "\r\n--").append(boundary).append("\r\n");
+            if(mime != null)
+                head.append("Content-Type: ").append(mime).append("\r\n");
+            head.append("Content-Range: ").append(ranges.contentRange(i)).append("\r\n\r\n");
+
+            partHeads[i] = Buffer.buffer(head.toString());
+            length += partHeads[i].length()+ranges.length(i);
+        }
+        Buffer tail = Buffer.buffer("\r\n--"+boundary+"--\r\n");
+        length += tail.length();
+
+        res.putHeader("Content-Type", "multipart/byteranges; boundary="+boundary);
+        res.putHeader("content-length", Long.toString(length));
+
+        if(context.request().method() == HttpMethod.HEAD)
+            return res.end();
+
+        return vertx().fileSystem().open(path, new OpenOptions().setRead(true).setWrite(false).setCreate(false)).compose(file -> {
+            Promise<Void> promise = Promise.promise();
+
+            // Stop if the client goes away, since a drain handler waiting on a full write queue would never be called
+            res.closeHandler(v -> promise.tryFail(new IllegalStateException("Response was closed before all ranges were sent")));
+            res.exceptionHandler(promise::tryFail);
+
+            _writeParts(res, file, ranges, partHeads, 0, ranges.start(0), promise);
+
+            return promise.future().compose(v -> res.end(tail)).onComplete(r -> file.close());
+        });
+    }
+
+    // Writes the part at the specified index starting from the specified position, then moves on to the next part
+    private static void _writeParts(HttpServerResponse res, AsyncFile file, ByteRanges ranges, Buffer[] partHeads, int index, long pos, Promise<Void> promise) {
+        if(promise.future().isComplete())
+            return;
+        if(index >= ranges.count()) {
+            promise.tryComplete();
+            return;
+        }
+        if(res.closed()) {
+            promise.tryFail(new IllegalStateException("Response was closed before all ranges were sent"));
+            return;
+        }
+
+        if(pos == ranges.start(index))
+            res.write(partHeads[index]);
+
+        int len = (int) Math.min(RANGE_CHUNK_SIZE, ranges.end(index)-pos+1);
+        file.read(Buffer.buffer(len), 0, pos, len).onComplete(readRes -> {
+            if(readRes.failed()) {
+                promise.tryFail(readRes.cause());
+                return;
+            }
+
+            Buffer chunk = readRes.result();
+            if(chunk.length() == 0) {
+                promise.tryFail(new IllegalStateException("File ended before all ranges were sent"));
+                return;
+            }
+            res.write(chunk);
+
+            // Move on to the next chunk, or the next part if this one is done
+            long next = pos+chunk.length();
+            Runnable cont = next > ranges.end(index) ?
+                    () -> _writeParts(res, file, ranges, partHeads, index+1, index+1 < ranges.count() ? ranges.start(index+1) : 0, promise) :
+                    () -> _writeParts(res, file, ranges, partHeads, index, next, promise);
+
+            if(res.writeQueueFull())
+                res.drainHandler(v -> cont.run());
+            else
+                cont.run();
+        });
+    }
+
+    // Sends a file from the hot file tier
+    private static Future<Void> _sendHot(RoutingContext context, HotFiles.Entry hot, boolean sendCachingHeaders) {
+        HttpServerResponse res = context.response();
+
+        res.putHeader("Accept-Ranges", "bytes");
+        res.putHeader("vary", "accept-encoding");
+
+        // Pick the best variant the client accepts
+        String acceptEncoding = context.request().headers().get("Accept-Encoding");
+        Buffer body = hot.content();
+        String encoding = null;
+        if(hot.br() != null && PrecompressedFiles.acceptsEncoding(acceptEncoding, "br")) {
+            body = hot.br();
+            encoding = "br";
+        } else if(hot.gzip() != null && PrecompressedFiles.acceptsEncoding(acceptEncoding, "gzip")) {
+            body = hot.gzip();
+            encoding = "gzip";
+        }
+
+        if(sendCachingHeaders) {
+            res.putHeader("date", formatDate(System.currentTimeMillis()));
+            res.putHeader("cache-control", "public, max-age=86400");
+            res.putHeader("last-modified", hot.lastModifiedHeader());
+            res.putHeader("etag", hot.etag(encoding));
+
+            // This only applies to successful responses, since error pages stand for a different resource
+            if(res.getStatusCode() == 200 && isFresh(context.request(), hot.etag(null), hot.lastModified())) {
+                sendNotModified(context);
+                return Future.succeededFuture();
+            }
+        }
+
+        if(encoding != null)
+            res.putHeader("content-encoding", encoding);
+        else if(!hot.compressible())
+            res.putHeader("content-encoding", "identity");
+        if(hot.mime() != null)
+            res.putHeader("Content-Type", hot.mime());
+
+        if(context.request().method() == HttpMethod.HEAD) {
+            res.putHeader("content-length", encoding == null ? hot.length() : Integer.toString(body.length()));
+            return res.end();
+        } else {
+            // The buffer is shared with other requests, so send a slice with its own indexes
+            return res.end(body.slice());
+        }
+    }
+
+    // Sends an entire file with the provided Content-Type
+    private static Future<Void> _sendFull(RoutingContext context, String path, long size, String mime) {
+        // Send file length on HEAD
+        if (context.request().method() == HttpMethod.HEAD)
+            context.response().putHeader("content-length", Long.toString(size));
+
+        // Send correct Content-Type
+        if(mime != null)
+            context.response().putHeader("Content-Type", mime);
+
+        // Send full file
+        return context.response().sendFile(path);
+    }
+
     /**
      * Send a file and respect byte range requests, and sends caching headers for the file
      * @param context The RoutingContext for the request to get the byte range from, and response to send the file to
@@ -109,6 +347,124 @@ public class ResponseUtils {
         return sendFileRanged(context, path, true);
     }
 
+    /**
+     * Returns a strong ETag for a file, derived from its size and modification time
+     * @param props The file's properties
+     * @param encoding The Content-Encoding of the variant being sent, or null if the file is sent as-is
+     * @return The file's ETag, including quotes
+     * @since 2.3
+     */
+    public static String fileEtag(FileProps props, String encoding) {
+        String tag = '"'+Long.toHexString(props.size())+'-'+Long.toHexString(props.lastModifiedTime());
+
+        return encoding == null ? tag+'"' : tag+'-'+encoding+'"';
+    }
+
+    /**
+     * Returns a strong ETag for content, derived from an MD5 hash of it.
+     * Used for processed documents, which may change without the file they came from changing.
+     * @param content The content
+     * @return The content's ETag, including quotes
+     * @since 2.3
+     */
+    public static String contentEtag(Buffer content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(content.getBytes());
+            StringBuilder sb = new StringBuilder(digest.length*2+2).append('"');
+            for(byte b : digest)
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+
+            return sb.append('"').toString();
+        } catch(NoSuchAlgorithmException e) {
+            // MD5 is required to be present on all Java platforms
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns whether the client's cached copy of a resource is still current, based on the request's If-None-Match and If-Modified-Since headers.
+     * If-None-Match takes precedence over If-Modified-Since, and ETags that only differ by Content-Encoding are considered to match.
+     * Only GET and HEAD requests can be fresh.
+     * @param request The request
+     * @param etag The resource's current ETag, or null if it has none
+     * @param lastModified The resource's modification time, or -1 if unknown
+     * @return Whether the client's cached copy is still current
+     * @since 2.3
+     */
+    public static boolean isFresh(HttpServerRequest request, String etag, long lastModified) {
+        if(request.method() != HttpMethod.GET && request.method() != HttpMethod.HEAD)
+            return false;
+
+        String ifNoneMatch = request.headers().get("If-None-Match");
+        if(ifNoneMatch != null)
+            return etag != null && _etagMatches(ifNoneMatch, etag);
+
+        String ifModifiedSince = request.headers().get("If-Modified-Since");
+        if(ifModifiedSince != null && lastModified > -1) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+
+                // HTTP dates only have second precision
+                return lastModified/1000 <= since/1000;
+            } catch(DateTimeParseException e) {
+                // Invalid dates are ignored
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Ends the response with 304 Not Modified, dropping any content headers that were already set
+     * @param context The RoutingContext for the request
+     * @since 2.3
+     */
+    public static void sendNotModified(RoutingContext context) {
+        context.response().headers()
+                .remove("Content-Type")
+                .remove("Content-Length")
+                .remove("Content-Encoding");
+        context.response().setStatusCode(304).end();
+    }
+
+    /**
+     * Formats a time as an HTTP date, such as those used in Last-Modified headers
+     * @param time The time in milliseconds since the epoch
+     * @return The formatted date
+     * @since 2.3
+     */
+    public static String formatDate(long time) {
+        return cacheDateFormat.format(Instant.ofEpochMilli(time));
+    }
+
+    // Returns whether an If-None-Match header matches an ETag, ignoring weakness and Content-Encoding suffixes
+    private static boolean _etagMatches(String header, String etag) {
+        String base = _stripEncoding(etag);
+
+        for(String tag : header.split(",")) {
+            tag = tag.trim();
+            if(tag.equals("*"))
+                return true;
+            if(tag.startsWith("W/"))
+                tag = tag.substring(2);
+            if(_stripEncoding(tag).equals(base))
+                return true;
+        }
+
+        return false;
+    }
+
+    // Removes the Content-Encoding suffix (if any) from an ETag
+    private static String _stripEncoding(String etag) {
+        if(etag.endsWith("-gzip\""))
+            return etag.substring(0, etag.length()-6)+'"';
+        else if(etag.endsWith("-br\""))
+            return etag.substring(0, etag.length()-4)+'"';
+        else
+            return etag;
+    }
+
     /**
      * Returns the correct MIME type for the specified filename, or null if none exists
      * @param filename The filename to get MIME type for
@@ -0,0 +1,117 @@
+package net.termer.twine.utils;
+
+import io.vertx.ext.web.Route;
+import io.vertx.ext.web.Router;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Utility class to treat multiple Routers as one.
+ * Calls made on a group Router (and the Routes it returns) are made on every Router in the group, so the same routes and handlers are registered on all of them.
+ * Methods that return values (such as getRoutes()) return the values of the first Router.
+ * @author termer
+ * @since 2.3
+ */
+public class RouterGroup {
+	/**
+	 * Creates a Router that applies all calls to every one of the specified Routers.
+	 * Handlers registered through the group are shared between all Routers, so they must be safe to call from multiple threads.
+	 * The group itself must not be used to handle requests. Each Router should handle its own requests.
+	 * @param routers The Routers to group
+	 * @return The group Router
+	 * @since 2.3
+	 */
+	public static Router create(Router... routers) {
+		return (Router) Proxy.newProxyInstance(
+				Router.class.getClassLoader(),
+				new Class<?>[] { Router.class },
+				new GroupProxy(routers.clone())
+		);
+	}
+
+	/**
+	 * Returns the Routers in a group Router, or the Router itself if it's not a group
+	 * @param router The group Router
+	 * @return The Routers in the group
+	 * @since 2.3
+	 */
+	public static Router[] routers(Router router) {
+		if(Proxy.isProxyClass(router.getClass()) && Proxy.getInvocationHandler(router) instanceof GroupProxy) {
+			Object[] targets = ((GroupProxy) Proxy.getInvocationHandler(router))._targets;
+			Router[] routers = new Router[targets.length];
+			for(int i = 0; i < targets.length; i++)
+				routers[i] = (Router) targets[i];
+
+			return routers;
+		} else {
+			return new Router[] { router };
+		}
+	}
+
+	// Makes calls on every target, and groups returned Routes
+	private static class GroupProxy implements InvocationHandler {
+		private final Object[] _targets;
+
+		private GroupProxy(Object[] targets) {
+			_targets = targets;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			// Requests must only be handled once
+			if(method.getName().equals("handle"))
+				return _invoke(method, _targets[0], args);
+
+			Object[] results = new Object[_targets.length];
+			boolean fluent = true;
+			boolean routes = true;
+			for(int i = 0; i < _targets.length; i++) {
+				results[i] = _invoke(method, _targets[i], _argsFor(args, i));
+				fluent = fluent && results[i] == _targets[i];
+				routes = routes && results[i] instanceof Route;
+			}
+
+			if(fluent)
+				return proxy;
+			else if(routes)
+				return Proxy.newProxyInstance(
+						Route.class.getClassLoader(),
+						new Class<?>[] { Route.class },
+						new GroupProxy(results)
+				);
+			else
+				return results[0];
+		}
+
+		// Replaces group Routers in arguments with the Router for the specified target
+		private Object[] _argsFor(Object[] args, int index) {
+			if(args == null)
+				return null;
+
+			Object[] res = args;
+			for(int i = 0; i < args.length; i++) {
+				if(args[i] instanceof Router) {
+					Router[] routers = routers((Router) args[i]);
+					if(routers.length > 1) {
+						if(res == args)
+							res = args.clone();
+						res[i] = routers.length == _targets.length ? routers[index] : routers[0];
+					}
+				}
+			}
+
+			return res;
+		}
+
+		// Invokes a method on a target and unwraps any exception it throws
+		private static Object _invoke(Method method, Object target, Object[] args) throws Throwable {
+			try {
+				return method.invoke(target, args);
+			} catch(InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+}
@@ -31,6 +31,17 @@ public class YamlConfig {
 		_yml = new Yaml();
 	}
 
+	/**
+	 * Instantiates a new Config object that is already loaded with the provided values
+	 * @param path the path to the config file
+	 * @param values the values to use as this config's contents
+	 * @since 2.3
+	 */
+	public YamlConfig(String path, Map<String, Object> values) {
+		this(path);
+		_map = values;
+	}
+
 	/**
 	 * Returns the path to this config file
 	 * @return The path to this config file
@@ -97,6 +108,20 @@ public class YamlConfig {
 		}
 	}
 	
+	/**
+	 * Returns a field's value from this config based on the provided node, or the provided default value if the node does not exist.
+	 * Useful for reading newer config fields that may be missing from config files created by older versions.
+	 * @param node The node to fetch from this config
+	 * @param def The value to return if the node does not exist
+	 * @return A field's value from this config based on the provided node, or the default value
+	 * @since 2.3
+	 */
+	public Object getNodeOrDefault(String node, Object def) {
+		Object val = getNode(node);
+
+		return val == null ? def : val;
+	}
+
 	/**
 	 * Returns whether the specified key exists in this Config
 	 * @param key the key to check
@@ -0,0 +1,547 @@
+package net.termer.twine.utils.files;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static net.termer.twine.Twine.logger;
+
+/**
+ * Writes lines to a log file from a dedicated thread.
+ * Lines are queued in a bounded queue, drained in batches, and encoded into a reusable direct buffer which is written to a single open FileChannel.
+ * The buffer is flushed when it fills up, and at least once every flush interval.
+ * The log file can be rotated by size and time. Rotation happens on the writer thread between writes, so no lines are lost or written twice.
+ * Rotated segments are compressed and pruned on a separate background thread.
+ * If the log file is moved or replaced externally (such as by logrotate), the writer reopens it.
+ * @author termer
+ * @since 2.3
+ */
+public class AccessLogWriter {
+	/**
+	 * What to do with lines written while the queue is full
+	 * @since 2.3
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Wait until there is room in the queue.
+		 * This will block the thread writing the line (usually an event loop) until the writer catches up.
+		 * @since 2.3
+		 */
+		BLOCK,
+		/**
+		 * Drop the line and count it as dropped
+		 * @since 2.3
+		 */
+		DROP,
+		/**
+		 * Drop the line, count it as dropped, and periodically log how many lines were dropped
+		 * @since 2.3
+		 */
+		DROP_AND_LOG
+	}
+
+	// Maximum amount of lines to take from the queue at once
+	private static final int BATCH_SIZE = 1024;
+	// How often to check whether the log file was moved or replaced externally (milliseconds)
+	private static final long FILE_CHECK_INTERVAL = 1000;
+	// Timestamp format appended to rotated segments
+	private static final DateTimeFormatter SEGMENT_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS").withZone(ZoneOffset.UTC);
+	// Suffix of rotated segment names: timestamp, counter added when the name is taken, and extension if compressed
+	private static final Pattern SEGMENT_NAME = Pattern.compile("(\\d{8}-\\d{6}-\\d{3})(?:-(\\d{1,9}))?(?:\\.gz)?");
+
+	private final ArrayBlockingQueue<String> _queue;
+	private final OverflowPolicy _policy;
+	private final long _flushInterval;
+	private final ByteBuffer _buf;
+	private final CharsetEncoder _encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final LongAdder _dropped = new LongAdder();
+	private final LongAdder _written = new LongAdder();
+	private final Thread _thread;
+	private volatile String _path;
+	private volatile boolean _running = true;
+	private volatile boolean _echo = false;
+	private FileChannel _channel = null;
+	private String _openPath = null;
+	private long _lastFlush = System.currentTimeMillis();
+	private long _reportedDrops = 0;
+
+	// Rotation settings
+	private volatile long _maxSize = 0;
+	private volatile long _rotateInterval = 0;
+	private volatile int _maxFiles = 0;
+	private volatile boolean _compress = false;
+	private volatile boolean _rotateRequested = false;
+	// Rotation state, only touched by the writer thread (except for resetting the next rotation time)
+	private long _fileSize = 0;
+	private volatile long _nextRotation = Long.MAX_VALUE;
+	private Object _fileKey = null;
+	private long _lastFileCheck = 0;
+	private final ExecutorService _archiver = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r);
+		thread.setName("LogArchivingThread");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Creates and starts a new AccessLogWriter
+	 * @param path The path of the log file
+	 * @param capacity The maximum amount of lines that can be queued
+	 * @param bufferSize The size of the write buffer (bytes)
+	 * @param flushInterval The maximum time buffered lines are held before being written (milliseconds)
+	 * @param policy What to do with lines written while the queue is full
+	 * @since 2.3
+	 */
+	public AccessLogWriter(String path, int capacity, int bufferSize, long flushInterval, OverflowPolicy policy) {
+		_path = path;
+		_queue = new ArrayBlockingQueue<>(capacity);
+		_buf = ByteBuffer.allocateDirect(bufferSize);
+		_flushInterval = flushInterval;
+		_policy = policy;
+
+		_thread = new Thread(this::_run);
+		_thread.setName("LogWritingThread");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	/**
+	 * Queues a line to be written, following the overflow policy if the queue is full.
+	 * A newline is appended to the line when written.
+	 * @param line The line to write
+	 * @return Whether the line was queued (false if it was dropped)
+	 * @since 2.3
+	 */
+	public boolean write(String line) {
+		if(_queue.offer(line))
+			return true;
+
+		if(_policy == OverflowPolicy.BLOCK && _running) {
+			try {
+				_queue.put(line);
+				return true;
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		_dropped.increment();
+		return false;
+	}
+
+	/**
+	 * Sets the path of the log file.
+	 * The writer switches to the new file before writing its next batch.
+	 * @param path The path of the log file
+	 * @since 2.3
+	 */
+	public void path(String path) {
+		_path = path;
+	}
+	/**
+	 * Returns the path of the log file
+	 * @return The path of the log file
+	 * @since 2.3
+	 */
+	public String path() {
+		return _path;
+	}
+
+	/**
+	 * Sets whether lines should also be printed to stdout.
+	 * Lines are printed from the writer thread, so printing never blocks threads writing lines.
+	 * @param echo Whether to print lines to stdout
+	 * @since 2.3
+	 */
+	public void echo(boolean echo) {
+		_echo = echo;
+	}
+
+	/**
+	 * Sets how the log file is rotated.
+	 * Rotated segments are renamed to the log file's name with a timestamp appended, e.g. "access.log.20211231-235959-999".
+	 * @param maxSize The size at which to rotate the log file (bytes), or 0 to not rotate by size
+	 * @param interval How often to rotate the log file (milliseconds), or 0 to not rotate by time. Rotation happens on multiples of the interval since the epoch, so 86400000 rotates at midnight UTC.
+	 * @param maxFiles The maximum amount of rotated segments to keep, or 0 to keep all of them
+	 * @param compress Whether to gzip rotated segments
+	 * @since 2.3
+	 */
+	public void rotation(long maxSize, long interval, int maxFiles, boolean compress) {
+		_maxSize = maxSize;
+		_maxFiles = maxFiles;
+		_compress = compress;
+		if(interval != _rotateInterval) {
+			_rotateInterval = interval;
+
+			// Recalculate the next rotation time on the writer thread
+			_nextRotation = -1;
+		}
+	}
+
+	/**
+	 * Requests the log file to be rotated before the next write, regardless of size or time
+	 * @since 2.3
+	 */
+	public void rotate() {
+		_rotateRequested = true;
+	}
+
+	/**
+	 * Returns the amount of lines waiting to be written
+	 * @return The amount of queued lines
+	 * @since 2.3
+	 */
+	public int queueDepth() {
+		return _queue.size();
+	}
+	/**
+	 * Returns the amount of lines dropped because the queue was full
+	 * @return The amount of dropped lines
+	 * @since 2.3
+	 */
+	public long dropped() {
+		return _dropped.sum();
+	}
+	/**
+	 * Returns the amount of lines written to the log file
+	 * @return The amount of written lines
+	 * @since 2.3
+	 */
+	public long written() {
+		return _written.sum();
+	}
+
+	/**
+	 * Stops accepting new lines, writes all queued lines, and closes the log file.
+	 * Waits up to the specified amount of time for queued lines to be written, and for rotated segments that are being compressed to finish.
+	 * The writer thread notices the close within one flush interval.
+	 * @param timeout The maximum time to wait (milliseconds)
+	 * @since 2.3
+	 */
+	public void close(long timeout) {
+		long deadline = System.currentTimeMillis()+timeout;
+
+		// The writer thread isn't interrupted, since that would close the FileChannel mid-write
+		_running = false;
+
+		try {
+			_thread.join(timeout);
+
+			// Let archiving finish, so compressed segments aren't cut off mid-write
+			_archiver.shutdown();
+			if(!_archiver.awaitTermination(Math.max(deadline-System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS))
+				logger().warn("Timed out while compressing rotated access log segments");
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Writer thread loop
+	private void _run() {
+		ArrayList<String> batch = new ArrayList<>(BATCH_SIZE);
+
+		while(_running || !_queue.isEmpty()) {
+			try {
+				String first = _running ? _queue.poll(_flushInterval, TimeUnit.MILLISECONDS) : _queue.poll();
+
+				if(first != null) {
+					batch.add(first);
+					_queue.drainTo(batch, BATCH_SIZE-1);
+
+					_open();
+					for(String line : batch)
+						_encode(line);
+					_written.add(batch.size());
+
+					if(_echo)
+						for(String line : batch)
+							System.out.println(line);
+					batch.clear();
+				}
+
+				// Flush if idle, or if buffered lines have been held long enough
+				long now = System.currentTimeMillis();
+				_checkFile(now);
+				if(_buf.position() > 0 && (first == null || now-_lastFlush >= _flushInterval))
+					_flush();
+				if(first == null || now-_lastFlush >= _flushInterval)
+					_reportDrops();
+			} catch(InterruptedException e) {
+				logger().error("Failed to read access log message queue:");
+				e.printStackTrace();
+			} catch(IOException e) {
+				logger().error("Failed to write to access log:");
+				e.printStackTrace();
+
+				// Drop what couldn't be written and reopen the file on the next batch
+				_buf.clear();
+				batch.clear();
+				_closeChannel();
+			}
+		}
+
+		try {
+			_flush();
+		} catch(IOException e) {
+			logger().error("Failed to write to access log:");
+			e.printStackTrace();
+		}
+		_closeChannel();
+	}
+
+	// Opens the log file, or switches to a new one if the path has changed
+	private void _open() throws IOException {
+		String path = _path;
+
+		if(_channel == null || !path.equals(_openPath)) {
+			_flush();
+			_closeChannel();
+			_openChannel(path);
+
+			// Rotate right away if the existing file is from a previous interval
+			long interval = _rotateInterval;
+			if(interval > 0 && _fileSize > 0 && Files.getLastModifiedTime(Paths.get(path)).toMillis() < (System.currentTimeMillis()/interval)*interval)
+				_rotateRequested = true;
+		}
+	}
+
+	// Opens the file at the specified path for appending and resets rotation state
+	private void _openChannel(String path) throws IOException {
+		Path file = Paths.get(path);
+		_channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		_openPath = path;
+		_fileSize = _channel.size();
+		_fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+		_nextRotation = _nextBoundary(System.currentTimeMillis());
+	}
+
+	// Rotates the log file if it's due, and reopens it if it was moved or replaced externally
+	private void _checkFile(long now) throws IOException {
+		if(_channel == null)
+			return;
+
+		if(_nextRotation < 0)
+			_nextRotation = _nextBoundary(now);
+
+		if(_rotateRequested || now >= _nextRotation) {
+			_rotateRequested = false;
+			_flush();
+			if(_fileSize > 0)
+				_rotate();
+			else
+				_nextRotation = _nextBoundary(now);
+		} else if(now-_lastFileCheck >= FILE_CHECK_INTERVAL) {
+			_lastFileCheck = now;
+
+			Path file = Paths.get(_openPath);
+			boolean replaced;
+			try {
+				Object key = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+				replaced = !Objects.equals(key, _fileKey);
+			} catch(NoSuchFileException e) {
+				replaced = true;
+			}
+
+			if(replaced) {
+				_flush();
+				_closeChannel();
+				_openChannel(_openPath);
+			}
+		}
+	}
+
+	// Returns the next rotation time after the specified time
+	private long _nextBoundary(long now) {
+		long interval = _rotateInterval;
+		return interval > 0 ? (now/interval+1)*interval : Long.MAX_VALUE;
+	}
+
+	// Moves the current log file to a timestamped segment, hands the segment to the archiver, and opens a new log file.
+	// Anything still in the buffer is written to the new file.
+	private void _rotate() throws IOException {
+		String path = _openPath;
+		_closeChannel();
+
+		Path live = Paths.get(path);
+		if(Files.exists(live) && Files.size(live) > 0) {
+			String base = live.getFileName()+"."+SEGMENT_FORMAT.format(Instant.now());
+			Path segment = live.resolveSibling(base);
+			for(int i = 1; Files.exists(segment) || Files.exists(live.resolveSibling(base+".gz")); i++)
+				segment = live.resolveSibling(base+"-"+i);
+
+			Files.move(live, segment, StandardCopyOption.ATOMIC_MOVE);
+
+			Path seg = segment;
+			boolean compress = _compress;
+			int maxFiles = _maxFiles;
+			try {
+				_archiver.execute(() -> _archive(seg, live, compress, maxFiles));
+			} catch(RejectedExecutionException e) {
+				// The writer was closed while still writing, so the segment is left uncompressed
+				logger().warn("Rotated access log segment "+seg+" was not archived because the writer is closed");
+			}
+		}
+
+		_openChannel(path);
+	}
+
+	// Compresses a rotated segment (if enabled) and deletes the oldest segments beyond the retention limit
+	private static void _archive(Path segment, Path live, boolean compress, int maxFiles) {
+		if(compress) {
+			Path gz = segment.resolveSibling(segment.getFileName()+".gz");
+			Path tmp = segment.resolveSibling(segment.getFileName()+".gz.tmp");
+
+			try {
+				try(InputStream in = Files.newInputStream(segment);
+					OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp), 65536)) {
+					byte[] buf = new byte[65536];
+					int read;
+					while((read = in.read(buf)) > 0)
+						out.write(buf, 0, read);
+				}
+
+				Files.move(tmp, gz, StandardCopyOption.ATOMIC_MOVE);
+				Files.delete(segment);
+			} catch(IOException e) {
+				logger().error("Failed to compress rotated access log "+segment+":");
+				e.printStackTrace();
+			}
+		}
+
+		String prefix = live.getFileName()+".";
+		Path dir = live.toAbsolutePath().getParent();
+
+		// Delete partial archives left by a shutdown that didn't wait for compression to finish (archiving runs on one thread, so none are in progress)
+		try(Stream<Path> files = Files.list(dir)) {
+			for(Path p : files.filter(p -> {
+				String name = p.getFileName().toString();
+				return name.endsWith(".gz.tmp") && _segmentKey(name.substring(0, name.length()-4), prefix) != null;
+			}).collect(Collectors.toList()))
+				Files.deleteIfExists(p);
+		} catch(IOException e) {
+			logger().error("Failed to delete partial access log archives:");
+			e.printStackTrace();
+		}
+
+		if(maxFiles > 0) {
+
+			try(Stream<Path> files = Files.list(dir)) {
+				// Only files named by rotation are pruned, so other files in the directory are left alone
+				List<Path> segments = files
+						.filter(p -> _segmentKey(p.getFileName().toString(), prefix) != null)
+						.sorted(Comparator.comparing((Path p) -> _segmentKey(p.getFileName().toString(), prefix)).reversed())
+						.collect(Collectors.toList());
+
+				for(int i = maxFiles; i < segments.size(); i++)
+					Files.deleteIfExists(segments.get(i));
+			} catch(IOException e) {
+				logger().error("Failed to delete old access logs:");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// Returns a key that sorts rotated segments from oldest to newest, or null if the file name wasn't produced by rotation
+	private static String _segmentKey(String name, String prefix) {
+		if(!name.startsWith(prefix))
+			return null;
+
+		Matcher m = SEGMENT_NAME.matcher(name.substring(prefix.length()));
+		if(!m.matches())
+			return null;
+
+		// Pad the counter so "-10" sorts after "-9", and segments without one sort first
+		String counter = m.group(2) == null ? "" : m.group(2);
+		return m.group(1)+"-"+"000000000".substring(counter.length())+counter;
+	}
+
+	// Encodes a line and a newline into the buffer, flushing whenever the buffer fills up
+	private void _encode(String line) throws IOException {
+		CharBuffer chars = CharBuffer.wrap(line);
+		_encoder.reset();
+
+		while(true) {
+			CoderResult res = _encoder.encode(chars, _buf, true);
+
+			if(res.isOverflow())
+				_flush();
+			else
+				break;
+		}
+
+		if(!_buf.hasRemaining())
+			_flush();
+		_buf.put((byte) '\n');
+	}
+
+	// Writes the buffer's contents to the log file
+	private void _flush() throws IOException {
+		_lastFlush = System.currentTimeMillis();
+
+		if(_buf.position() == 0 || _channel == null)
+			return;
+
+		// Rotate first if these lines would put the file over its maximum size
+		long maxSize = _maxSize;
+		if(maxSize > 0 && _fileSize > 0 && _fileSize+_buf.position() > maxSize)
+			_rotate();
+
+		_buf.flip();
+		while(_buf.hasRemaining())
+			_fileSize += _channel.write(_buf);
+		_buf.clear();
+	}
+
+	// Closes the log file, if open
+	private void _closeChannel() {
+		if(_channel != null) {
+			try {
+				_channel.close();
+			} catch(IOException e) {
+				// Nothing else can be done
+			}
+			_channel = null;
+		}
+	}
+
+	// Logs how many lines have been dropped since the last report
+	private void _reportDrops() {
+		if(_policy != OverflowPolicy.DROP_AND_LOG)
+			return;
+
+		long dropped = _dropped.sum();
+		if(dropped > _reportedDrops) {
+			logger().warn("Access log queue was full, dropped "+(dropped-_reportedDrops)+" lines");
+			_reportedDrops = dropped;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package net.termer.twine.utils.files;
+
+import io.vertx.core.Handler;
+import net.termer.twine.Events;
+import net.termer.twine.Twine;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Utility class to watch directories for changes using the platform's WatchService.
+ * Directories are watched recursively, and directories created inside of watched directories are watched automatically.
+ * Changes are collected in small batches, then passed to listeners and announced with the FILES_CHANGED event.
+ * @author termer
+ * @since 2.3
+ */
+public class FileWatcher {
+	// How long to wait for more changes before dispatching a batch (milliseconds)
+	private static final long BATCH_WAIT = 50;
+
+	private static WatchService _service = null;
+	private static Thread _thread = null;
+	// Key: watch key for a directory, value: the directory's absolute path
+	private static final Map<WatchKey, Path> _keys = new ConcurrentHashMap<>();
+	private static final CopyOnWriteArrayList<Handler<Path>> _listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Starts the watcher thread if it is not already running
+	 * @throws IOException If creating the WatchService fails
+	 * @since 2.3
+	 */
+	public static synchronized void start() throws IOException {
+		if(_service != null)
+			return;
+
+		_service = FileSystems.getDefault().newWatchService();
+
+		WatchService service = _service;
+		_thread = new Thread(() -> _run(service));
+		_thread.setName("FileWatcherThread");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	/**
+	 * Stops the watcher thread and forgets all watched directories
+	 * @since 2.3
+	 */
+	public static synchronized void stop() {
+		if(_service == null)
+			return;
+
+		try {
+			_service.close();
+		} catch(IOException e) {
+			Twine.logger().error("Failed to close file watch service:");
+			e.printStackTrace();
+		}
+
+		_service = null;
+		_thread = null;
+		_keys.clear();
+	}
+
+	/**
+	 * Returns whether the watcher is running
+	 * @return Whether the watcher is running
+	 * @since 2.3
+	 */
+	public static synchronized boolean running() {
+		return _service != null;
+	}
+
+	/**
+	 * Watches the specified directory and all directories inside of it.
+	 * Does nothing if the directory does not exist.
+	 * Directories that can't be read or watched (for example because the OS watch limit was reached) are skipped and logged, and changes in them are only picked up when caches revalidate.
+	 * @param dir The directory to watch
+	 * @throws IOException If walking the directory fails
+	 * @throws IllegalStateException If the watcher has not been started
+	 * @since 2.3
+	 */
+	public static synchronized void watch(String dir) throws IOException {
+		if(_service == null)
+			throw new IllegalStateException("File watcher has not been started");
+
+		Path path = Paths.get(dir).toAbsolutePath().normalize();
+		if(Files.isDirectory(path))
+			_register(_service, path);
+	}
+
+	/**
+	 * Stops watching all directories, without stopping the watcher itself
+	 * @since 2.3
+	 */
+	public static synchronized void unwatchAll() {
+		for(WatchKey key : _keys.keySet())
+			key.cancel();
+		_keys.clear();
+	}
+
+	/**
+	 * Registers a listener to be called with the absolute path of every changed file or directory.
+	 * Listeners are called on the watcher thread, so they should not block for long.
+	 * @param listener The listener
+	 * @since 2.3
+	 */
+	public static void addListener(Handler<Path> listener) {
+		_listeners.add(listener);
+	}
+	/**
+	 * Removes a previously registered listener
+	 * @param listener The listener to remove
+	 * @since 2.3
+	 */
+	public static void removeListener(Handler<Path> listener) {
+		_listeners.remove(listener);
+	}
+
+	// Registers a directory and all of its subdirectories, skipping (and logging) directories that can't be registered
+	private static void _register(WatchService service, Path dir) throws IOException {
+		int[] failed = { 0 };
+		IOException[] first = { null };
+
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+				try {
+					_keys.put(d.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), d);
+					return FileVisitResult.CONTINUE;
+				} catch(IOException e) {
+					return _skip(e);
+				}
+			}
+
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				return _skip(e);
+			}
+
+			private FileVisitResult _skip(IOException e) {
+				if(failed[0]++ == 0)
+					first[0] = e;
+				return FileVisitResult.SKIP_SUBTREE;
+			}
+		});
+
+		// Log once per walk, since hitting the OS watch limit fails for every remaining directory
+		if(failed[0] > 0)
+			Twine.logger().warn("Failed to watch "+failed[0]+" director"+(failed[0] == 1 ? "y" : "ies")+" in "+dir+" ("+first[0]+"), changes in "+(failed[0] == 1 ? "it" : "them")+" will only be picked up when caches revalidate");
+	}
+
+	// Watcher thread loop
+	private static void _run(WatchService service) {
+		while(true) {
+			WatchKey key;
+			try {
+				key = service.take();
+			} catch(InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+
+			// Collect changes until things settle down
+			LinkedHashSet<Path> changed = new LinkedHashSet<>();
+			try {
+				while(key != null) {
+					Path dir = _keys.get(key);
+
+					for(WatchEvent<?> evt : key.pollEvents()) {
+						if(dir == null)
+							continue;
+
+						// Events were lost, so treat the whole directory as changed
+						if(evt.kind() == OVERFLOW) {
+							changed.add(dir);
+							continue;
+						}
+
+						Path child = dir.resolve((Path) evt.context());
+						changed.add(child);
+
+						// Watch newly created directories
+						if(evt.kind() == ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+							try {
+								synchronized(FileWatcher.class) {
+									if(_service == service)
+										_register(service, child);
+								}
+							} catch(IOException e) {
+								Twine.logger().error("Failed to watch new directory "+child+":");
+								e.printStackTrace();
+							}
+						}
+					}
+
+					if(!key.reset())
+						_keys.remove(key);
+
+					key = service.poll(BATCH_WAIT, TimeUnit.MILLISECONDS);
+				}
+			} catch(InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+
+			// Notify listeners
+			for(Path path : changed) {
+				for(Handler<Path> listener : _listeners) {
+					try {
+						listener.handle(path);
+					} catch(Exception e) {
+						Twine.logger().error("Uncaught exception in file watcher listener:");
+						e.printStackTrace();
+					}
+				}
+			}
+
+			if(!changed.isEmpty())
+				Events.fire(Events.Type.FILES_CHANGED);
+		}
+	}
+}